@@ -0,0 +1,31 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/* add . on a tree none of whose files are in the index, so every file is hashed again. Run with
+* -p threads=1,2,4,8 to see how hashing scales with add.threads.*/
+@State(Scope.Benchmark)
+public class AddBenchmark extends SyntheticRepo {
+    @Param({"1", "4"})
+    public int threads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+        System.setProperty("javavc.add.threads", Integer.toString(threads));
+    }
+
+    @Setup(Level.Invocation)
+    public void forgetIndex() {
+        new File(".javavc/index").delete();
+        new File(".javavc/stage").delete();
+    }
+
+    @Benchmark
+    public void add() {
+        run("add", ".");
+    }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* Entry point of benchmarks.jar. JavaVC works on the current directory, so the benchmarks are
+* run by JMH in a scratch directory created here (the forked benchmark JVMs inherit it), and
+* SyntheticRepo builds its repositories there. Arguments are passed on to JMH; unless given,
+* results are written as JSON to jmh-result.json in the directory the jar was started from.
+*
+*   java -jar benchmarks/target/benchmarks.jar [-prof gc] [-p files=10000] [benchmark regex]*/
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File scratch = Files.createTempDirectory("javavc-bench").toFile();
+        new File(scratch, SyntheticRepo.MARKER).createNewFile();
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+        }
+        if (!arguments.contains("-rff")) {
+            arguments.add("-rff");
+            arguments.add(new File("jmh-result.json").getAbsolutePath());
+        }
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("org.openjdk.jmh.Main");
+        command.addAll(arguments);
+        int status;
+        try {
+            status = new ProcessBuilder(command).directory(scratch).inheritIO().start().waitFor();
+        } finally {
+            SyntheticRepo.delete(scratch);
+        }
+        System.exit(status);
+    }
+}
@@ -0,0 +1,22 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* checkout <branch>, switching between master and the first branch on every call.*/
+@State(Scope.Benchmark)
+public class CheckoutBenchmark extends SyntheticRepo {
+    private boolean onBranch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+    }
+
+    @Benchmark
+    public void checkout() {
+        onBranch = !onBranch;
+        run("checkout", onBranch ? branch(1) : "master");
+    }
+}
@@ -0,0 +1,28 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* commit of one changed file on top of the synthetic history.*/
+@State(Scope.Benchmark)
+public class CommitBenchmark extends SyntheticRepo {
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+    }
+
+    @Setup(Level.Invocation)
+    public void stageChange() throws IOException {
+        int i = next++ % files;
+        touch(i);
+        run("add", "-f", fileName(i));
+    }
+
+    @Benchmark
+    public void commit() {
+        run("commit", "-m", "Benchmark commit " + next);
+    }
+}
@@ -0,0 +1,36 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* add and commit of a batch of changed files under each fsync setting: what writing new objects,
+* the stage and the refs durably costs over not syncing at all. Run with -p changed=1,10,100 to
+* see how batching pays off as commands write more objects.*/
+@State(Scope.Benchmark)
+public class DurabilityBenchmark extends SyntheticRepo {
+    @Param({"none", "batch", "strict"})
+    public String fsync;
+
+    @Param({"100"})
+    public int changed;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+        System.setProperty("javavc.fsync", fsync);
+    }
+
+    @Setup(Level.Invocation)
+    public void change() throws IOException {
+        for (int k = 0; k < changed; k++) touch(next++ % files);
+    }
+
+    @Benchmark
+    public void addAndCommit() {
+        run("add", ".");
+        run("commit", "-m", "Benchmark commit " + next);
+    }
+}
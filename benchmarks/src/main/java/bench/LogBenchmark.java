@@ -0,0 +1,20 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* log --global over the whole synthetic history.*/
+@State(Scope.Benchmark)
+public class LogBenchmark extends SyntheticRepo {
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+    }
+
+    @Benchmark
+    public void logGlobal() {
+        run("log", "--global");
+    }
+}
@@ -0,0 +1,27 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* merge of the first branch into master. Both changed lines of the same files, in different
+* places, so files are merged line by line. The repository is put back after every call.*/
+@State(Scope.Benchmark)
+public class MergeBenchmark extends SyntheticRepo {
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+        snapshot();
+    }
+
+    @Setup(Level.Invocation)
+    public void restoreRepo() throws IOException {
+        restore();
+    }
+
+    @Benchmark
+    public void merge() {
+        run("merge", branch(1));
+    }
+}
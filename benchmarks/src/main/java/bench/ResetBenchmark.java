@@ -0,0 +1,28 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* reset to the commit halfway down master's history. The repository is put back after every call.*/
+@State(Scope.Benchmark)
+public class ResetBenchmark extends SyntheticRepo {
+    private String target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+        target = masterHistory.get(masterHistory.size() / 2);
+        snapshot();
+    }
+
+    @Setup(Level.Invocation)
+    public void restoreRepo() throws IOException {
+        restore();
+    }
+
+    @Benchmark
+    public void reset() {
+        run("reset", target);
+    }
+}
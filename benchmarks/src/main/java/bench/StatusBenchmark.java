@@ -0,0 +1,21 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/* status of a clean working tree, with the index up to date.*/
+@State(Scope.Benchmark)
+public class StatusBenchmark extends SyntheticRepo {
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        build();
+        run("status");
+    }
+
+    @Benchmark
+    public void status() {
+        run("status");
+    }
+}
@@ -0,0 +1,217 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* Base of the benchmark states: builds a repository in the current directory, which BenchmarkMain
+* made a scratch directory. The repository has `files` text files of about `fileSize` bytes, and
+* `branches` branches besides master. Each branch, and then master, gets `depth` commits that
+* each change a line in one percent of the files, every branch in its own part of the files.
+*
+* Commands are run through JavaVC.main in the benchmark JVM, with their output discarded. JMH
+* does not accept benchmarks in the default package, where JavaVC lives, so its classes are
+* reached through method handles.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public abstract class SyntheticRepo {
+    static final String MARKER = ".javavc-bench";
+    private static final String SNAPSHOT = ".bench-snapshot";
+    private static final int LINE_LENGTH = 64;
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    });
+
+    @Param({"1000"})
+    public int files;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    @Param({"20"})
+    public int depth;
+
+    @Param({"2"})
+    public int branches;
+
+    private static final MethodHandle MAIN = handle("JavaVC", "main", MethodType.methodType(void.class, String[].class));
+    private static final MethodHandle[] CACHES = {
+            handle("ObjectStore", "close", MethodType.methodType(void.class)),
+            handle("CommitGraph", "close", MethodType.methodType(void.class)),
+            handle("Config", "reload", MethodType.methodType(void.class))
+    };
+
+    private final Random random = new Random(42);
+    private int regions;
+    final List<String> masterHistory = new ArrayList<>(); //Hashes of master's commits, oldest first
+
+    /* Builds the repository from scratch and leaves master checked out.*/
+    protected void build() throws IOException {
+        if (!new File(MARKER).exists()) {
+            throw new IllegalStateException("Not a benchmark directory, start the benchmarks with BenchmarkMain");
+        }
+        System.setOut(DISCARD);
+        for (File f: new File(".").listFiles()) {
+            if (!f.getName().equals(MARKER)) delete(f);
+        }
+        forget();
+        regions = branches + 1;
+        run("init");
+        for (int i = 0; i < files; i++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < fileSize) text.append(line()).append('\n');
+            write(fileName(i), text.toString());
+        }
+        run("add", ".");
+        run("commit", "-m", "Base");
+        for (int b = 1; b <= branches; b++) {
+            run("checkout", "master");
+            run("checkout", "-b", branch(b));
+            history(b);
+        }
+        run("checkout", "master");
+        history(0);
+    }
+
+    private static MethodHandle handle(String className, String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName(className), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Commits depth changes, touching only lines in the given region of each file.*/
+    private void history(int region) throws IOException {
+        int changed = Math.max(1, files / 100);
+        for (int c = 0; c < depth; c++) {
+            for (int k = 0; k < changed; k++) {
+                File f = new File(fileName(random.nextInt(files)));
+                String[] lines = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).split("\n");
+                int perRegion = Math.max(1, lines.length / regions);
+                int line = Math.min(lines.length - 1, region * perRegion + random.nextInt(perRegion));
+                lines[line] = line();
+                write(f.getName(), String.join("\n", lines) + "\n");
+            }
+            run("add", ".");
+            run("commit", "-m", "Commit " + c + " in region " + region);
+            if (region == 0) masterHistory.add(head());
+        }
+    }
+
+    static String fileName(int i) {
+        return "file" + i + ".txt";
+    }
+
+    static String branch(int b) {
+        return "branch" + b;
+    }
+
+    private String line() {
+        char[] chars = new char[LINE_LENGTH];
+        for (int i = 0; i < chars.length; i++) chars[i] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+    }
+
+    /* Changes one line of a file, for benchmarks that need a modification to work on.*/
+    void touch(int i) throws IOException {
+        File f = new File(fileName(i));
+        String text = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        write(f.getName(), line() + "\n" + text.substring(text.indexOf('\n') + 1));
+    }
+
+    static void write(String name, String text) throws IOException {
+        Files.write(new File(name).toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void run(String... args) {
+        invoke(MAIN, (Object) args);
+    }
+
+    private static void invoke(MethodHandle handle, Object... args) {
+        try {
+            handle.invokeWithArguments(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Drops everything cached in the JVM about the repository, after it was changed behind the
+    * commands' back.*/
+    static void forget() {
+        for (MethodHandle handle: CACHES) invoke(handle);
+    }
+
+    static String head() throws IOException {
+        return new String(Files.readAllBytes(new File(".javavc/HEAD").toPath()), StandardCharsets.UTF_8).split("\n")[1].trim();
+    }
+
+    /* Saves the working files and repository state, except for the objects: commands only ever
+    * add objects, so the saved state stays valid.*/
+    void snapshot() throws IOException {
+        File dir = new File(SNAPSHOT);
+        delete(dir);
+        copy(new File("."), dir);
+    }
+
+    /* Puts back what snapshot saved.*/
+    void restore() throws IOException {
+        clear(new File("."));
+        copy(new File(SNAPSHOT), new File("."));
+        forget();
+    }
+
+    /* The marker, the snapshot and the objects are left alone by snapshot and restore.*/
+    private static boolean kept(File f) {
+        Path path = f.toPath().normalize();
+        return path.equals(Paths.get(MARKER)) || path.equals(Paths.get(SNAPSHOT)) || path.equals(Paths.get(".javavc", "objects"));
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (File f: from.listFiles()) {
+                if (!kept(f)) copy(f, new File(to, f.getName()));
+            }
+        } else {
+            Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private static void clear(File dir) {
+        for (File f: dir.listFiles()) {
+            if (kept(f)) continue;
+            if (f.isDirectory()) clear(f);
+            f.delete();
+        }
+    }
+
+    static void delete(File f) {
+        if (f.isDirectory()) {
+            for (File child: f.listFiles()) delete(child);
+        }
+        f.delete();
+    }
+}
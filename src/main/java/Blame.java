@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/* Finds the commit that last changed each line of a file, walking back from a commit through its
+* first parents. The lines not attributed yet are kept as ranges of the revision being looked at,
+* each with the line of the blamed file it starts at. Commits whose changed path filter rules out
+* the file, or whose blob of it is unchanged, are passed over without a diff. When the file
+* changed, only the parent's version is diffed against the current one: lines inside a change are
+* attributed to the current commit and the others are carried back, ranges mapped to the parent's
+* line numbers. The walk ends as soon as no line is left.
+*
+* At a merge, a line that differs from the first parent but is found unchanged in the merge
+* parent's version came in through the merge: it takes the commit the merge parent's own blame
+* gives it. Only lines neither parent has are attributed to the merge itself.
+*
+* Results are cached in .javavc/blame, one file per commit and path, and a walk that reaches a
+* commit whose result is cached takes the remaining lines from it, so blaming again after a new
+* commit only looks at the new revisions. Blaming a merge parent fills the cache the same way.
+*
+* Cached result: number of distinct commits, the commits, number of lines, then per line the
+* position of its commit.*/
+public class Blame {
+    private static final String CACHE_LOCATION = ".javavc/blame";
+    private static final int CACHE_VERSION = 2; //Part of the key: version 1 blamed merged lines on the merge
+    private final CommitGraph graph;
+    private final ObjectStore objects;
+    private final Lines.Interner interner = new Lines.Interner();
+    private HashSet<String> cached;
+
+    public Blame(CommitGraph graph, ObjectStore objects) {
+        this.graph = graph;
+        this.objects = objects;
+    }
+
+    /* The commit that last changed each line of the file at path in the commit at record i, or null
+    * if the commit has no such file.*/
+    public String[] blame(int i, String path) throws IOException {
+        String commit = graph.hashAt(i);
+        String[] origins = readCache(commit, path);
+        if (origins != null) return origins;
+        String blob = Commit.deserializeCommit(commit).getTree().find(path);
+        if (blob == null) return null;
+        Lines lines = Lines.of(objects.read(blob), interner);
+        origins = new String[lines.size()];
+        ArrayList<int[]> ranges = new ArrayList<>(); //Start and end in the current revision, line of the file at start
+        if (lines.size() > 0) ranges.add(new int[]{0, lines.size(), 0});
+        int rev = i;
+        while (!ranges.isEmpty()) {
+            String[] known = rev == i ? null : readCache(graph.hashAt(rev), path);
+            if (known != null) {
+                for (int[] r: ranges) {
+                    for (int k = r[0]; k < r[1]; k++) origins[r[2] + k - r[0]] = known[k];
+                }
+                ranges.clear();
+                break;
+            }
+            int parent = graph.parent(rev);
+            if (parent < 0) break;
+            if (!graph.mayChange(rev, path)) {
+                rev = parent;
+                continue;
+            }
+            String parentBlob = Commit.deserializeCommit(graph.hashAt(parent)).getTree().find(path);
+            if (blob.equals(parentBlob)) {
+                rev = parent;
+                continue;
+            }
+            String[] merged = fromMergeParent(rev, path, lines);
+            if (parentBlob == null && merged == null) break;
+            //A file only the merge parent had: every line is taken from it
+            Lines parentLines = Lines.of(parentBlob == null ? new byte[0] : objects.read(parentBlob), interner);
+            ranges = carry(ranges, Diff.diff(parentLines.ids, lines.ids), graph.hashAt(rev), merged, origins);
+            rev = parent;
+            blob = parentBlob;
+            lines = parentLines;
+        }
+        //Whatever is left was there when the file first appeared
+        for (int[] r: ranges) {
+            for (int k = r[0]; k < r[1]; k++) origins[r[2] + k - r[0]] = graph.hashAt(rev);
+        }
+        writeCache(commit, path, origins);
+        return origins;
+    }
+
+    /* For a merge, the origin of each line of the current revision in the merge parent's history,
+    * null for the lines the merge parent does not have. Null if rev is not a merge or the merge
+    * parent has no such file.*/
+    private String[] fromMergeParent(int rev, String path, Lines lines) throws IOException {
+        int merge = graph.mergeParent(rev);
+        if (merge < 0) return null;
+        String mergeBlob = Commit.deserializeCommit(graph.hashAt(merge)).getTree().find(path);
+        if (mergeBlob == null) return null;
+        String[] known = blame(merge, path);
+        int[] hunks = Diff.diff(Lines.of(objects.read(mergeBlob), interner).ids, lines.ids);
+        String[] merged = new String[lines.size()];
+        int k = 0;
+        int delta = 0; //Merge parent line minus current line, outside hunks
+        for (int h = 0; h <= hunks.length; h += 4) {
+            int end = h < hunks.length ? hunks[h + 2] : lines.size();
+            for (; k < end; k++) merged[k] = known[k + delta];
+            if (h < hunks.length) {
+                k = hunks[h + 3];
+                delta = hunks[h + 1] - hunks[h + 3];
+            }
+        }
+        return merged;
+    }
+
+    /* Attributes the lines of ranges that lie inside a hunk to commit, unless merged gives them an
+    * origin, and returns the others as ranges of the parent's lines. Ranges and hunks are both in
+    * line order.*/
+    private static ArrayList<int[]> carry(ArrayList<int[]> ranges, int[] hunks, String commit, String[] merged, String[] origins) {
+        ArrayList<int[]> carried = new ArrayList<>();
+        int h = 0;
+        int delta = 0; //Parent line minus current line, outside hunks
+        for (int[] r: ranges) {
+            int s = r[0];
+            while (s < r[1]) {
+                while (h < hunks.length && hunks[h + 3] <= s) {
+                    delta = hunks[h + 1] - hunks[h + 3];
+                    h += 4;
+                }
+                if (h < hunks.length && hunks[h + 2] <= s) {
+                    int end = Math.min(r[1], hunks[h + 3]);
+                    for (int k = s; k < end; k++) origins[r[2] + k - r[0]] = merged != null && merged[k] != null ? merged[k] : commit;
+                    s = end;
+                } else {
+                    int end = h < hunks.length ? Math.min(r[1], hunks[h + 2]) : r[1];
+                    carried.add(new int[]{s + delta, end + delta, r[2] + s - r[0]});
+                    s = end;
+                }
+            }
+        }
+        return carried;
+    }
+
+    private static File cacheFile(String commit, String path) throws IOException {
+        try {
+            byte[] key = MessageDigest.getInstance("SHA-1").digest((CACHE_VERSION + " " + commit + " " + path).getBytes(StandardCharsets.UTF_8));
+            return new File(CACHE_LOCATION, ObjectId.toHex(key));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private String[] readCache(String commit, String path) throws IOException {
+        if (cached == null) {
+            //One listing rather than a lookup for every commit walked
+            cached = new HashSet<>();
+            String[] names = new File(CACHE_LOCATION).list();
+            if (names != null) {
+                for (String name: names) cached.add(name);
+            }
+        }
+        File f = cacheFile(commit, path);
+        if (!cached.contains(f.getName())) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            String[] commits = new String[in.readInt()];
+            for (int k = 0; k < commits.length; k++) commits[k] = in.readUTF();
+            String[] origins = new String[in.readInt()];
+            for (int k = 0; k < origins.length; k++) origins[k] = commits[in.readInt()];
+            return origins;
+        } catch (IOException e) {
+            return null; //Treated as not cached
+        }
+    }
+
+    private void writeCache(String commit, String path, String[] origins) throws IOException {
+        File dir = new File(CACHE_LOCATION);
+        dir.mkdirs();
+        File f = cacheFile(commit, path);
+        File tmp = File.createTempFile(f.getName(), ".tmp", dir); //Several blames may run at once
+        HashMap<String, Integer> positions = new HashMap<>();
+        ArrayList<String> commits = new ArrayList<>();
+        for (String origin: origins) {
+            if (!positions.containsKey(origin)) {
+                positions.put(origin, commits.size());
+                commits.add(origin);
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(commits.size());
+            for (String c: commits) out.writeUTF(c);
+            out.writeInt(origins.length);
+            for (String origin: origins) out.writeInt(positions.get(origin));
+        }
+        if (!tmp.renameTo(f)) tmp.delete(); //Another blame wrote the same result
+        cached.add(f.getName());
+    }
+
+    /* Removes every cached result, for gc: they can name commits that are being removed.*/
+    public static void clearCache() {
+        File[] files = new File(CACHE_LOCATION).listFiles();
+        if (files == null) return;
+        for (File f: files) f.delete();
+    }
+}
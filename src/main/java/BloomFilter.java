@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/* Bloom filter over strings: answers "definitely not present" or "maybe present". Uses 10 bits
+* per key and 7 bit positions per key, about a 1% false positive rate. The positions come from one
+* 64-bit FNV-1a hash of the key's UTF-8 bytes split in two (double hashing), so filters written
+* by one run can be read by any other.
+*
+* Stored filter: number of bits (a multiple of 64), then the bits as longs.*/
+public class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    /* Builds the filter for keys and returns it in its stored form.*/
+    public static byte[] create(Collection<String> keys) {
+        int bits = Math.max(64, (keys.size() * BITS_PER_KEY + 63) / 64 * 64);
+        long[] words = new long[bits / 64];
+        for (String key: keys) {
+            long h = hash(key);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = position(h, i, bits);
+                words[bit >>> 6] |= 1L << bit;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(4 + bits / 8);
+        out.putInt(bits);
+        for (long w: words) out.putLong(w);
+        return out.array();
+    }
+
+    /* False when key is certainly not in the filter stored at offset.*/
+    public static boolean mightContain(ByteBuffer filters, int offset, String key) {
+        int bits = filters.getInt(offset);
+        long h = hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = position(h, i, bits);
+            if ((filters.getLong(offset + 4 + (bit >>> 6) * 8) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static int position(long h, int i, int bits) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        return Math.floorMod(h1 + i * h2, bits);
+    }
+
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b: key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
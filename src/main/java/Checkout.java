@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Moves the working directory from one snapshot (path to blob hash) to another, touching
+* only the files that differ. A file that should end up with the target content is left alone
+* when the stat index (or, if its stat data changed, a rehash) shows it already has it, so
+* unchanged files keep their modification times. Files are written on checkout.threads threads.*/
+public class Checkout {
+    private final ObjectStore objects;
+    private final Index index;
+    private int written;
+    private int deleted;
+    private int skipped;
+
+    /* The outcome for one path, applied to the index once all workers are done.*/
+    private static class Update {
+        final String name;
+        final BasicFileAttributes attrs; //null when the file was deleted
+        final String hash;
+        final boolean written;
+
+        Update(String name, BasicFileAttributes attrs, String hash, boolean written) {
+            this.name = name;
+            this.attrs = attrs;
+            this.hash = hash;
+            this.written = written;
+        }
+    }
+
+    public Checkout(ObjectStore objects, Index index) {
+        this.objects = objects;
+        this.index = index;
+    }
+
+    /* Replaces the files of from with those of to. Files in from but not in to are deleted,
+    * other files in the directory are not touched.*/
+    public void apply(Map<String, String> from, Map<String, String> to) {
+        ArrayList<String> paths = new ArrayList<>(to.keySet());
+        HashSet<String> removed = new HashSet<>(from.keySet());
+        removed.removeAll(to.keySet());
+        paths.addAll(removed);
+        int threads = Math.min(paths.size(), Config.getInt("checkout.threads", Runtime.getRuntime().availableProcessors()));
+        List<Update> updates = new ArrayList<>();
+        if (threads <= 1) {
+            for (String path: paths) {
+                try {
+                    updates.add(update(path, to.get(path)));
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                ArrayList<Future<Update>> results = new ArrayList<>();
+                for (String path: paths) {
+                    String hash = to.get(path);
+                    results.add(pool.submit(() -> update(path, hash)));
+                }
+                for (Future<Update> result: results) {
+                    try {
+                        updates.add(result.get());
+                    } catch (ExecutionException e) {
+                        System.out.println(e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        for (Update u: updates) {
+            if (u == null) {
+                skipped++;
+            } else if (u.attrs == null) {
+                index.remove(u.name);
+                deleted++;
+                //Directories left empty go too
+                File dir = new File(u.name).getParentFile();
+                while (dir != null && dir.delete()) dir = dir.getParentFile();
+            } else {
+                index.update(u.name, u.attrs, u.hash);
+                if (u.written) written++;
+                else skipped++;
+            }
+        }
+    }
+
+    /* Brings one path to the target hash (null to delete it). Returns null when nothing changed
+    * and the index entry is still valid.*/
+    private Update update(String path, String hash) throws IOException {
+        Events.WriteFile event = Events.writeFile();
+        long start = Stats.start();
+        Update u = null;
+        try {
+            u = apply(path, hash);
+            return u;
+        } finally {
+            Stats.time(Stats.Phase.CHECKOUT, start);
+            if (event != null) {
+                event.path = path;
+                event.written = u != null && (u.written || u.attrs == null);
+                event.commit();
+            }
+        }
+    }
+
+    private Update apply(String path, String hash) throws IOException {
+        File f = new File(path);
+        if (hash == null) {
+            return f.delete() ? new Update(path, null, null, false) : null;
+        }
+        if (f.isFile()) {
+            Stats.count(Stats.Counter.FILES_STATTED, 1);
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            if (hash.equals(index.cachedHash(path, attrs))) return null;
+            if (hash.equals(JavaVC.generateBlobHash(f))) {
+                //Same content with new stat data: keep the file and refresh its index entry
+                return new Update(path, attrs, hash, false);
+            }
+        }
+        if (f.getParentFile() != null) f.getParentFile().mkdirs();
+        objects.copyTo(hash, f);
+        return new Update(path, Files.readAttributes(f.toPath(), BasicFileAttributes.class), hash, true);
+    }
+
+    public int getWritten() { return written; }
+
+    public int getDeleted() { return deleted; }
+
+    public int getSkipped() { return skipped; }
+}
@@ -0,0 +1,72 @@
+import java.util.Random;
+
+/* Content-defined chunking (FastCDC). A rolling gear hash over the bytes of a file decides where
+* chunks end, so boundaries depend only on the nearby content: an edit changes the chunks around
+* it, and every other chunk, before or after it, is cut exactly as before and deduplicates.
+*
+* Chunks are at least MIN_SIZE and at most MAX_SIZE bytes. Up to AVERAGE_SIZE a boundary needs
+* more hash bits to be zero than after it (normalized chunking), which keeps most chunks close to
+* the average. A Chunker keeps the current chunk in a buffer it reuses for every chunk and file.*/
+public class Chunker {
+    static final int MIN_SIZE = 2 * 1024;
+    static final int AVERAGE_SIZE = 8 * 1024;
+    static final int MAX_SIZE = 64 * 1024;
+    private static final long MASK_SMALL = 0x0003590703530000L; //15 bits, before the average size
+    private static final long MASK_LARGE = 0x0000d90003530000L; //11 bits, after it
+    private static final long[] GEAR = new long[256];
+
+    static {
+        //Fixed seed: the table has to be the same in every run, or chunks would stop matching
+        Random random = new Random(0x4a5643);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    private final byte[] chunk = new byte[MAX_SIZE];
+    private int size;
+    private long hash;
+    private boolean boundary;
+
+    /* Adds bytes from data, starting at offset, until the current chunk is complete or length bytes
+    * were added. Returns how many bytes were added; the chunk is complete when isFull() is true, and
+    * next() has to be called before adding more.*/
+    public int add(byte[] data, int offset, int length) {
+        int i = 0;
+        //No boundary can come before MIN_SIZE, so those bytes are not hashed at all
+        int skip = Math.min(length, MIN_SIZE - size);
+        if (skip > 0) {
+            System.arraycopy(data, offset, chunk, size, skip);
+            size += skip;
+            i = skip;
+        }
+        while (i < length && !isFull()) {
+            byte b = data[offset + i++];
+            chunk[size++] = b;
+            hash = (hash << 1) + GEAR[b & 0xff];
+            if ((hash & (size < AVERAGE_SIZE ? MASK_SMALL : MASK_LARGE)) == 0) {
+                boundary = true;
+            }
+        }
+        return i;
+    }
+
+    /* True when a boundary was found, or the chunk reached MAX_SIZE.*/
+    public boolean isFull() {
+        return boundary || size == MAX_SIZE;
+    }
+
+    public byte[] chunk() {
+        return chunk;
+    }
+
+    /* Length of the current chunk.*/
+    public int size() {
+        return size;
+    }
+
+    /* Starts the next chunk.*/
+    public void next() {
+        size = 0;
+        hash = 0;
+        boundary = false;
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/* Thin client for the server: sends the command line to the server of the repository in the
+* working directory and prints its output. When no server is running the command is run in this
+* JVM instead, so java Client can be used in place of java JavaVC everywhere. It only loads a handful
+* of classes before connecting, which an AppCDS archive makes faster still (see README).*/
+public class Client {
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: Client command [arguments]");
+            return;
+        }
+        int status = send(args);
+        if (status < 0) JavaVC.main(args);
+        else if (status != 0) System.exit(status);
+    }
+
+    /* Runs the command on the server and returns its exit status, or -1 when no server could be reached.*/
+    static int send(String[] args) {
+        if (!new File(Server.SOCKET_LOCATION).exists()) return -1;
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(Server.SOCKET_LOCATION));
+        } catch (IOException e) {
+            return -1;
+        }
+        int status = 1;
+        try (SocketChannel c = channel;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)))) {
+            out.writeInt(args.length);
+            for (String arg: args) out.writeUTF(arg);
+            out.flush();
+            byte[] buffer = new byte[8192];
+            int stream;
+            while ((stream = in.readByte()) != Server.END) {
+                PrintStream target = stream == Server.ERR ? System.err : System.out;
+                int length = in.readInt();
+                while (length > 0) {
+                    int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                    if (n < 0) throw new EOFException();
+                    target.write(buffer, 0, n);
+                    length -= n;
+                }
+            }
+            status = in.readInt();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        System.out.flush();
+        System.err.flush();
+        return status;
+    }
+}
@@ -1,90 +1,248 @@
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 
-/* A commit. Each commit has a hash to the previous commit in the commit tree.*/
-public class Commit implements Serializable {
-    //Must provide a UID so that serializations can use different class definitions
-    private static final long serialVersionUID = 8474892334572341244L;
+/* A commit. Each commit refers to the previous commit in the commit tree by its hash, so a
+* stored commit only holds the commit itself and never the chain of its ancestors. A commit
+* that concludes a merge also refers to the head of the branch that was merged in. The files
+* of a commit are kept in a Tree, and the commit refers to its root.*/
+public class Commit {
+    private static final int COMMIT_MAGIC = 0x4a564343; //"JVCC"
+    //Version 1 had no merge parent, versions 1 and 2 listed the files instead of a tree, and before
+    //version 4 the hash only covered the message and date
+    private static final int COMMIT_VERSION = 4;
     private Date date;
-    private SimpleDateFormat format;
     private String formattedDate;
     private String commitMessage;
-    private Commit prevCommit;
+    private String prevCommitHash;
     private String author;
-    private Commit globalPrevCommit;
+    private String globalPrevCommitHash;
+    private String mergeParentHash;
     private String branch;
-    private HashMap<String, String> stagedFiles;
+    private String treeHash;
+    private HashMap<String, String> stagedFiles; //Only for commits stored before trees, and while converting them
     private HashSet<String> removedFiles;
     private String hash;
-    private final static String COMMIT_LOCATION = ".javavc/commits";
 
 
-    public Commit(Commit prevCommit, Commit globalPrevCommit, String branch, String commitMessage, String author, HashMap<String, String> stagedFiles, HashSet<String> removedFiles) {
-        this.prevCommit = prevCommit;
-        this.globalPrevCommit = globalPrevCommit;
+    public Commit(String prevCommitHash, String mergeParentHash, String globalPrevCommitHash, String branch, String commitMessage, String author,
+                  String treeHash, HashSet<String> removedFiles) {
+        this.prevCommitHash = prevCommitHash;
+        this.mergeParentHash = mergeParentHash;
+        this.globalPrevCommitHash = globalPrevCommitHash;
         this.branch = branch;
         this.commitMessage = commitMessage;
         this.author = author;
-        this.stagedFiles = stagedFiles;
-        this.format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        this.treeHash = treeHash;
         this.date = new Date();
-        this.formattedDate = format.format(this.date);
+        this.formattedDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(this.date);
         this.removedFiles = removedFiles;
         this.hash = this.commitHash();
     }
 
+    private Commit() {}
+
+    /* Rebuilds a commit with a known hash and date, used when converting existing repositories.*/
+    static Commit restore(String hash, String prevCommitHash, String globalPrevCommitHash, String branch, String commitMessage, String author,
+                          Date date, String formattedDate, HashMap<String, String> stagedFiles, HashSet<String> removedFiles) {
+        Commit c = new Commit();
+        c.hash = hash;
+        c.prevCommitHash = prevCommitHash;
+        c.globalPrevCommitHash = globalPrevCommitHash;
+        c.branch = branch;
+        c.commitMessage = commitMessage;
+        c.author = author;
+        c.date = date;
+        c.formattedDate = formattedDate;
+        c.stagedFiles = stagedFiles;
+        c.removedFiles = removedFiles;
+        return c;
+    }
+
+    /* SHA-1 of everything the commit records: its tree, parents, branch, author, message, date and
+    * removed files. Two commits only share a hash when they are the same commit, and a commit's
+    * hash vouches for the whole history below it.*/
     private String commitHash() {
-        //digest of the SHA-1 hash
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            String str = this.commitMessage + this.formattedDate;
-            //Convert sting to SHA-1 byte array
-            byte[] SHA1 = md.digest(str.getBytes(StandardCharsets.UTF_8));
-            return JavaVC.convertToHex(SHA1, true);
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Hashing algorithm not found");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(this.treeHash == null ? "" : this.treeHash);
+            out.writeUTF(this.prevCommitHash == null ? "" : this.prevCommitHash);
+            out.writeUTF(this.mergeParentHash == null ? "" : this.mergeParentHash);
+            out.writeUTF(this.globalPrevCommitHash == null ? "" : this.globalPrevCommitHash);
+            out.writeUTF(this.branch);
+            out.writeUTF(this.author);
+            out.writeUTF(this.commitMessage);
+            out.writeLong(this.date.getTime());
+            String[] removed = this.removedFiles.toArray(new String[0]);
+            Arrays.sort(removed);
+            out.writeInt(removed.length);
+            for (String fileName: removed) out.writeUTF(fileName);
+            out.flush();
+            return ObjectId.toHex(MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray()));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println(e);
             return "";
         }
     }
 
+    /* True if the hash the commit was stored under is the hash of its contents.*/
+    boolean hasValidHash() {
+        return this.treeHash != null && this.hash.equals(commitHash());
+    }
+
+    /* The same commit with its tree and parents renamed, under the hash that gives it. Used when
+    * object names change (see LegacyMigration.migrateObjectIds).*/
+    Commit renamed(String treeHash, String prevCommitHash, String mergeParentHash, String globalPrevCommitHash) {
+        Commit c = new Commit();
+        c.treeHash = treeHash;
+        c.prevCommitHash = prevCommitHash;
+        c.mergeParentHash = mergeParentHash;
+        c.globalPrevCommitHash = globalPrevCommitHash;
+        c.branch = this.branch;
+        c.author = this.author;
+        c.commitMessage = this.commitMessage;
+        c.date = this.date;
+        c.formattedDate = this.formattedDate;
+        c.removedFiles = this.removedFiles;
+        c.hash = c.commitHash();
+        return c;
+    }
+
+    /* Stores the commit in the object store under its hash. A commit converted from an older
+    * format has its files stored as a tree first.*/
     public void serializeCommit() {
-        File commitDir = new File(COMMIT_LOCATION);
-        if (!commitDir.exists()) {
-            commitDir.mkdirs();
-        }
-        String filePath = COMMIT_LOCATION + "/" + this.hash;
+        Events.WriteCommit event = Events.writeCommit();
         try {
-            FileOutputStream file = new FileOutputStream(filePath);
-            ObjectOutputStream serialized = new ObjectOutputStream(file);
-
-            serialized.writeObject(this);
-            serialized.close();
+            if (this.treeHash == null) {
+                this.treeHash = Tree.of(this.stagedFiles).write(ObjectStore.open());
+                this.stagedFiles = null;
+            }
+            ObjectStore.open().write(this.hash, ObjectStore.COMMIT, toBytes());
         } catch (Exception e) {
             System.out.println(e);
+        } finally {
+            if (event != null) {
+                event.hash = this.hash;
+                event.commit();
+            }
         }
     }
 
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(COMMIT_MAGIC);
+        out.writeInt(COMMIT_VERSION);
+        out.writeUTF(this.hash);
+        out.writeUTF(this.prevCommitHash == null ? "" : this.prevCommitHash);
+        out.writeUTF(this.globalPrevCommitHash == null ? "" : this.globalPrevCommitHash);
+        out.writeUTF(this.mergeParentHash == null ? "" : this.mergeParentHash);
+        out.writeUTF(this.branch);
+        out.writeUTF(this.author);
+        out.writeUTF(this.commitMessage);
+        out.writeLong(this.date.getTime());
+        out.writeUTF(this.formattedDate);
+        out.writeUTF(this.treeHash);
+        out.writeInt(this.removedFiles.size());
+        for (String fileName: this.removedFiles) {
+            out.writeUTF(fileName);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static boolean exists(String hash) {
+        return ObjectStore.open().contains(hash);
+    }
+
+    /* Commits are cached once parsed, so walking the same history again does not go back to disk.
+    * Cached commits are shared and must not be modified.*/
     public static Commit deserializeCommit(String hash) {
-        String filePath = COMMIT_LOCATION + "/" + hash;
+        ObjectCache cache = ObjectStore.open().getCache();
+        Object cached = cache.get(hash);
+        if (cached instanceof Commit) return (Commit) cached;
+        Events.ReadCommit event = Events.readCommit();
         try {
-            FileInputStream file = new FileInputStream(filePath);
-            ObjectInputStream in = new ObjectInputStream(file);
-            Commit deserialized = (Commit)(in.readObject());
-            file.close();
-            in.close();
-            return deserialized;
+            byte[] data = ObjectStore.open().readUncached(hash);
+            if (data == null) {
+                System.out.println("Commit at " + hash + " does not exist");
+                return null;
+            }
+            Commit c = fromBytes(data);
+            cache.put(hash, c, c.estimatedSize());
+            return c;
         } catch (Exception e) {
             System.out.println(e);
             return null;
+        } finally {
+            if (event != null) {
+                event.hash = hash;
+                event.commit();
+            }
         }
     }
 
+    static Commit fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != COMMIT_MAGIC) {
+            throw new IOException("Unknown commit format");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > COMMIT_VERSION) {
+            throw new IOException("Unknown commit format");
+        }
+        Commit c = new Commit();
+        c.hash = in.readUTF();
+        String prev = in.readUTF();
+        String globalPrev = in.readUTF();
+        c.prevCommitHash = prev.equals("") ? null : prev;
+        c.globalPrevCommitHash = globalPrev.equals("") ? null : globalPrev;
+        if (version >= 2) {
+            String mergeParent = in.readUTF();
+            c.mergeParentHash = mergeParent.equals("") ? null : mergeParent;
+        }
+        c.branch = in.readUTF();
+        c.author = in.readUTF();
+        c.commitMessage = in.readUTF();
+        c.date = new Date(in.readLong());
+        c.formattedDate = in.readUTF();
+        if (version >= 3) {
+            c.treeHash = in.readUTF();
+        } else {
+            int stagedCount = in.readInt();
+            c.stagedFiles = new HashMap<>();
+            for (int i = 0; i < stagedCount; i++) {
+                c.stagedFiles.put(in.readUTF(), in.readUTF());
+            }
+        }
+        int removedCount = in.readInt();
+        c.removedFiles = new HashSet<>();
+        for (int i = 0; i < removedCount; i++) {
+            c.removedFiles.add(in.readUTF());
+        }
+        return c;
+    }
+
+    /* Rough number of bytes the parsed commit takes on the heap, for the cache budget.*/
+    private long estimatedSize() {
+        long size = 256 + 2L * (commitMessage.length() + author.length() + branch.length() + formattedDate.length());
+        if (stagedFiles != null) {
+            for (String fileName: stagedFiles.keySet()) {
+                size += 96 + 2L * (fileName.length() + stagedFiles.get(fileName).length());
+            }
+        }
+        for (String fileName: removedFiles) {
+            size += 64 + 2L * fileName.length();
+        }
+        return size;
+    }
+
     public String getCommitBranch() {
         return this.branch;
     }
@@ -95,13 +253,46 @@ public class Commit implements Serializable {
 
     public String getCommitDate() { return this.formattedDate; }
 
+    public Date getDate() { return this.date; }
+
     public String getCommitMessage() { return this.commitMessage; }
 
-    public Commit getPrevCommit() { return this.prevCommit; }
+    public String getPrevCommitHash() { return this.prevCommitHash; }
+
+    public String getGlobalPrevCommitHash() { return this.globalPrevCommitHash; }
 
-    public Commit getGlobalPrevCommit() { return this.globalPrevCommit; }
+    public String getMergeParentHash() { return this.mergeParentHash; }
 
-    public HashMap<String, String> getStagedFiles() { return this.stagedFiles; }
+    /* Hash of the root tree, null for commits stored before trees.*/
+    public String getTreeHash() { return this.treeHash; }
+
+    /* Parents are loaded on first access, through the cache rather than held by the commit, so a
+    * long history is never pinned in memory by its newest commit.*/
+    public Commit getPrevCommit() {
+        return this.prevCommitHash == null ? null : deserializeCommit(this.prevCommitHash);
+    }
+
+    public Commit getGlobalPrevCommit() {
+        return this.globalPrevCommitHash == null ? null : deserializeCommit(this.globalPrevCommitHash);
+    }
+
+    /* The root tree of the commit. Commits stored before trees get one built in memory.*/
+    public Tree getTree() throws IOException {
+        return this.treeHash != null ? Tree.read(this.treeHash) : Tree.of(this.stagedFiles);
+    }
+
+    /* All files of the commit, path to blob hash. Reads the whole tree: use getTree() to look at
+    * only part of it.*/
+    public HashMap<String, String> getStagedFiles() {
+        if (this.treeHash == null) return this.stagedFiles;
+        HashMap<String, String> files = new HashMap<>();
+        try {
+            getTree().flatten("", files);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        return files;
+    }
 
     public HashSet<String> getRemovedFiles() { return this.removedFiles; }
 }
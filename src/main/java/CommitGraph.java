@@ -0,0 +1,517 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/* The shape of the history, kept apart from the commits so that walking it never loads a commit.
+* .javavc/commit-graph holds one fixed-width record per commit, parents before children:
+*
+*   hash (the 20 bytes of its object id), parent, merge parent, global parent, generation, timestamp,
+*   changed paths filter
+*
+* Parents are record numbers (-1 for none). The generation of a commit is one more than the
+* largest generation of its parents, so a commit is never an ancestor of a commit whose
+* generation is not larger. New commits are appended; .javavc/commit-graph.lookup lists the
+* record numbers sorted by hash so they can be found by binary search, and is rewritten once
+* enough records were appended after it.
+*
+* The changed paths filter is the offset in .javavc/commit-graph.bloom of a Bloom filter of the
+* paths the commit changed against its first parent, directories included, so log -- <path> can
+* skip the commits that certainly did not touch path without reading them. -1 means no filter
+* (too many paths), and the commit has to be checked.*/
+public class CommitGraph {
+    private static final String GRAPH_LOCATION = ".javavc/commit-graph";
+    private static final String LOOKUP_LOCATION = ".javavc/commit-graph.lookup";
+    private static final String BLOOM_LOCATION = ".javavc/commit-graph.bloom";
+    private static final int MAGIC = 0x4a564347; //"JVCG"
+    private static final int LOOKUP_MAGIC = 0x4a56434c; //"JVCL"
+    private static final int BLOOM_MAGIC = 0x4a564342; //"JVCB"
+    private static final int VERSION = 3;
+    private static final int HEADER = 8;
+    private static final int LOOKUP_HEADER = 12;
+    private static final int HASH_LENGTH = ObjectId.LENGTH;
+    private static final int RECORD = HASH_LENGTH + 4 * 4 + 8 + 8;
+    private static final int MAX_FILTER_PATHS = 512; //Commits changing more paths get no filter
+    private static final int LOOKUP_SLACK = 256; //Records that may be searched linearly before the lookup is rewritten
+    private static final int VISITING = Integer.MAX_VALUE;
+    private static CommitGraph instance;
+    private MappedByteBuffer records;
+    private MappedByteBuffer lookup;
+    private MappedByteBuffer filters;
+    private int count;
+    private int sorted; //Records covered by the lookup
+    private boolean rebuilt;
+
+    private CommitGraph() {}
+
+    public static CommitGraph open() {
+        if (instance == null) {
+            instance = new CommitGraph();
+            if (!instance.map()) instance.rebuild();
+        }
+        return instance;
+    }
+
+    /* Drops the mapped graph, so the next open() reads the file again.*/
+    public static void close() {
+        instance = null;
+    }
+
+    /* Removes the graph files, for when the commits they list have been renamed.*/
+    public static void delete() {
+        close();
+        new File(GRAPH_LOCATION).delete();
+        new File(LOOKUP_LOCATION).delete();
+        new File(BLOOM_LOCATION).delete();
+    }
+
+    private boolean map() {
+        records = map(GRAPH_LOCATION);
+        if (records == null || records.capacity() < HEADER || records.getInt(0) != MAGIC || records.getInt(4) != VERSION) {
+            return false;
+        }
+        count = (records.capacity() - HEADER) / RECORD;
+        lookup = map(LOOKUP_LOCATION);
+        if (lookup == null || lookup.capacity() < LOOKUP_HEADER || lookup.getInt(0) != LOOKUP_MAGIC
+                || lookup.getInt(8) > count || lookup.capacity() < LOOKUP_HEADER + 4 * lookup.getInt(8)) {
+            lookup = null;
+            sorted = 0;
+        } else {
+            sorted = lookup.getInt(8);
+        }
+        filters = map(BLOOM_LOCATION);
+        if (filters != null && (filters.capacity() < HEADER || filters.getInt(0) != BLOOM_MAGIC)) filters = null;
+        return true;
+    }
+
+    private static MappedByteBuffer map(String location) {
+        File f = new File(location);
+        if (!f.exists()) return null;
+        try (FileChannel channel = new RandomAccessFile(f, "r").getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /* Record number of the commit, or -1 if it is not in the graph.*/
+    public int indexOf(String hash) {
+        if (!ObjectId.isHex(hash)) return -1;
+        byte[] key = key(hash);
+        int lo = 0;
+        int hi = sorted - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int i = lookup.getInt(LOOKUP_HEADER + 4 * mid);
+            int cmp = compare(i, key);
+            if (cmp == 0) return i;
+            if (cmp < 0) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        for (int i = count - 1; i >= sorted; i--) {
+            if (compare(i, key) == 0) return i;
+        }
+        return -1;
+    }
+
+    /* Like indexOf, but rebuilds the graph (once per run) when a stored commit is missing from it,
+    * as happens for commits made before the graph was kept.*/
+    public int find(String hash) {
+        int i = indexOf(hash);
+        if (i < 0 && hash != null && !rebuilt && Commit.exists(hash)) {
+            rebuild();
+            i = indexOf(hash);
+        }
+        return i;
+    }
+
+    private static byte[] key(String hash) {
+        return ObjectId.fromHex(hash).toBytes();
+    }
+
+    private int compare(int i, byte[] key) {
+        int base = HEADER + i * RECORD;
+        for (int k = 0; k < HASH_LENGTH; k++) {
+            int cmp = Byte.compare(records.get(base + k), key[k]);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    private int compare(int i, int j) {
+        int a = HEADER + i * RECORD;
+        int b = HEADER + j * RECORD;
+        for (int k = 0; k < HASH_LENGTH; k++) {
+            int cmp = Byte.compare(records.get(a + k), records.get(b + k));
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    public String hashAt(int i) {
+        return ObjectId.toHex(records, HEADER + i * RECORD);
+    }
+
+    public int parent(int i) { return records.getInt(HEADER + i * RECORD + HASH_LENGTH); }
+
+    public int mergeParent(int i) { return records.getInt(HEADER + i * RECORD + HASH_LENGTH + 4); }
+
+    public int globalParent(int i) { return records.getInt(HEADER + i * RECORD + HASH_LENGTH + 8); }
+
+    public int generation(int i) { return records.getInt(HEADER + i * RECORD + HASH_LENGTH + 12); }
+
+    public long timestamp(int i) { return records.getLong(HEADER + i * RECORD + HASH_LENGTH + 16); }
+
+    private long filter(int i) { return records.getLong(HEADER + i * RECORD + HASH_LENGTH + 24); }
+
+    /* False when the commit certainly did not change path (a file or directory) against its first
+    * parent. True means it may have, and the commit has to be read to know.*/
+    public boolean mayChange(int i, String path) {
+        long offset = filter(i);
+        if (offset < 0 || filters == null || offset >= filters.capacity()) return true;
+        return BloomFilter.mightContain(filters, (int) offset, path);
+    }
+
+    /* The paths the commit changed against its first parent (added, modified or removed files)
+    * and every directory above them.*/
+    public static HashSet<String> changedPaths(Commit c) throws IOException {
+        HashSet<String> paths = new HashSet<>();
+        Commit parent = c.getPrevCommit();
+        Tree.diff(parent == null ? null : parent.getTree(), c.getTree(), "", (path, oldHash, newHash) -> {
+            if (newHash != null) addWithDirectories(paths, path);
+        });
+        for (String removed: c.getRemovedFiles()) addWithDirectories(paths, removed);
+        return paths;
+    }
+
+    private static void addWithDirectories(HashSet<String> paths, String path) {
+        while (paths.add(path)) {
+            int slash = path.lastIndexOf('/');
+            if (slash < 0) break;
+            path = path.substring(0, slash);
+        }
+    }
+
+    /* Appends the commit's filter to the filter file, returning its offset or -1 for none.*/
+    private static long writeFilter(RandomAccessFile out, Commit c) throws IOException {
+        HashSet<String> paths = changedPaths(c);
+        if (paths.size() > MAX_FILTER_PATHS) return -1;
+        long offset = out.length();
+        if (offset == 0) {
+            out.writeInt(BLOOM_MAGIC);
+            out.writeInt(VERSION);
+            offset = HEADER;
+        }
+        out.seek(offset);
+        out.write(BloomFilter.create(paths));
+        return offset;
+    }
+
+    /* Appends a newly made commit. Its parents are already in the graph.*/
+    public void add(Commit c) {
+        if (records == null || filters == null) {
+            rebuild();
+            return;
+        }
+        if (indexOf(c.getCommitHash()) >= 0) return;
+        try {
+            ObjectStore.flushStaged(); //The graph never names a commit a crash could lose
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        int parent = find(c.getPrevCommitHash());
+        int mergeParent = find(c.getMergeParentHash());
+        int globalParent = find(c.getGlobalPrevCommitHash());
+        int generation = 1 + Math.max(parent < 0 ? 0 : generation(parent), mergeParent < 0 ? 0 : generation(mergeParent));
+        try (RandomAccessFile bloom = new RandomAccessFile(BLOOM_LOCATION, "rw");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(GRAPH_LOCATION, true)))) {
+            long filter = writeFilter(bloom, c);
+            writeRecord(out, c.getCommitHash(), parent, mergeParent, globalParent, generation, c.getDate().getTime(), filter);
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        map();
+        if (count - sorted >= LOOKUP_SLACK) writeLookup();
+    }
+
+    private static void writeRecord(DataOutputStream out, String hash, int parent, int mergeParent, int globalParent,
+                                    int generation, long timestamp, long filter) throws IOException {
+        out.write(key(hash));
+        out.writeInt(parent);
+        out.writeInt(mergeParent);
+        out.writeInt(globalParent);
+        out.writeInt(generation);
+        out.writeLong(timestamp);
+        out.writeLong(filter);
+    }
+
+    /* Rewrites the lookup to cover every record, merging the sorted part with the appended ones.*/
+    private void writeLookup() {
+        Integer[] tail = new Integer[count - sorted];
+        for (int i = 0; i < tail.length; i++) tail[i] = sorted + i;
+        Arrays.sort(tail, (x, y) -> compare(x, y));
+        File tmp = new File(LOOKUP_LOCATION + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(LOOKUP_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            int a = 0;
+            int b = 0;
+            while (a < sorted || b < tail.length) {
+                int fromLookup = a < sorted ? lookup.getInt(LOOKUP_HEADER + 4 * a) : -1;
+                if (b >= tail.length || (fromLookup >= 0 && compare(fromLookup, tail[b]) <= 0)) {
+                    out.writeInt(fromLookup);
+                    a++;
+                } else {
+                    out.writeInt(tail[b++]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        replace(tmp, new File(LOOKUP_LOCATION));
+        map();
+    }
+
+    private static void replace(File tmp, File dest) {
+        try {
+            Durability.replace(tmp, dest);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* The parts of a commit the graph needs, collected while rebuilding.*/
+    private static class Node {
+        final String hash;
+        final String[] parents; //parent, merge parent, global parent
+        final long timestamp;
+        int next; //Next parent to visit
+
+        Node(Commit c) {
+            hash = c.getCommitHash();
+            parents = new String[]{c.getPrevCommitHash(), c.getMergeParentHash(), c.getGlobalPrevCommitHash()};
+            timestamp = c.getDate().getTime();
+        }
+    }
+
+    /* Writes the graph from scratch from every commit reachable from the branches, the
+    * remote-tracking refs, HEAD and the latest commit. The graph files are only written under the
+    * repository lock, which a read-only command takes just for this.*/
+    public void rebuild() {
+        RepositoryLock lock = RepositoryLock.acquire(); //null when this process holds it already
+        try {
+            rebuildLocked();
+        } finally {
+            if (lock != null) lock.close();
+        }
+    }
+
+    private void rebuildLocked() {
+        rebuilt = true;
+        ArrayList<String> starts = new ArrayList<>(Refs.readAll(Refs.HEADS).values());
+        starts.addAll(Refs.readRemotes().values());
+        starts.add(Refs.readFile(new File(".javavc/LATEST")));
+        try {
+            String[] head = new String(Files.readAllBytes(new File(".javavc/HEAD").toPath()), StandardCharsets.UTF_8).split("\n");
+            if (head.length > 1) starts.add(head[1].trim());
+        } catch (IOException e) {
+            //No HEAD yet
+        }
+        //Depth first, writing each commit after all of its parents
+        ObjectIdMap order = new ObjectIdMap(); //Record number, or VISITING until the parents are written
+        ArrayList<Node> nodes = new ArrayList<>();
+        ArrayList<Node> stack = new ArrayList<>();
+        for (String start: starts) {
+            if (!ObjectId.isHex(start) || order.contains(start) || !Commit.exists(start)) continue;
+            order.put(start, VISITING);
+            stack.add(new Node(Commit.deserializeCommit(start)));
+            while (!stack.isEmpty()) {
+                Node n = stack.get(stack.size() - 1);
+                if (n.next < n.parents.length) {
+                    String p = n.parents[n.next++];
+                    if (ObjectId.isHex(p) && !order.contains(p) && Commit.exists(p)) {
+                        order.put(p, VISITING);
+                        stack.add(new Node(Commit.deserializeCommit(p)));
+                    }
+                } else {
+                    stack.remove(stack.size() - 1);
+                    order.put(n.hash, nodes.size());
+                    nodes.add(n);
+                }
+            }
+        }
+        int[] generations = new int[nodes.size()];
+        File tmp = new File(GRAPH_LOCATION + ".tmp");
+        File bloomTmp = new File(BLOOM_LOCATION + ".tmp");
+        bloomTmp.delete();
+        try (RandomAccessFile bloom = new RandomAccessFile(bloomTmp, "rw");
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < nodes.size(); i++) {
+                Node n = nodes.get(i);
+                int parent = recordOf(order, n.parents[0]);
+                int mergeParent = recordOf(order, n.parents[1]);
+                generations[i] = 1 + Math.max(parent < 0 ? 0 : generations[parent], mergeParent < 0 ? 0 : generations[mergeParent]);
+                long filter = writeFilter(bloom, Commit.deserializeCommit(n.hash));
+                writeRecord(out, n.hash, parent, mergeParent, recordOf(order, n.parents[2]), generations[i], n.timestamp, filter);
+            }
+            if (bloom.length() == 0) {
+                bloom.writeInt(BLOOM_MAGIC);
+                bloom.writeInt(VERSION);
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        replace(bloomTmp, new File(BLOOM_LOCATION));
+        replace(tmp, new File(GRAPH_LOCATION));
+        new File(LOOKUP_LOCATION).delete();
+        map();
+        writeLookup();
+    }
+
+    /* Records reachable from wants but not from haves, following all three parents, oldest first.
+    * A record always comes after its parents, so taking the highest queued record first sees every
+    * commit after all of its descendants, with everything it is reachable from known. The walk
+    * ends when only commits reachable from haves are queued.*/
+    public ArrayList<Integer> missing(Collection<Integer> wants, Collection<Integer> haves) {
+        byte[] flags = new byte[count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Collections.reverseOrder());
+        int active = 0; //Queued commits not reachable from haves
+        for (int h: haves) active += flag(h, STALE, flags, queue);
+        for (int w: wants) active += flag(w, FROM_A, flags, queue);
+        ArrayList<Integer> result = new ArrayList<>();
+        while (active > 0) {
+            int c = queue.poll();
+            byte f = flags[c];
+            if ((f & STALE) == 0) {
+                active--;
+                result.add(c);
+            }
+            for (int p: new int[]{parent(c), mergeParent(c), globalParent(c)}) active += flag(p, f, flags, queue);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /* Adds f to the flags of c, queueing c if it was not queued yet. Returns the change in the
+    * number of queued commits that are not stale.*/
+    private static int flag(int c, byte f, byte[] flags, PriorityQueue<Integer> queue) {
+        if (c < 0 || (flags[c] & f) == f) return 0;
+        boolean queued = flags[c] != 0;
+        boolean wasStale = (flags[c] & STALE) != 0;
+        flags[c] |= f;
+        boolean stale = (flags[c] & STALE) != 0;
+        if (!queued) {
+            queue.add(c);
+            return stale ? 0 : 1;
+        }
+        return stale && !wasStale ? -1 : 0;
+    }
+
+    private static int recordOf(ObjectIdMap order, String hash) {
+        int i = hash == null ? -1 : order.get(hash);
+        return i == VISITING ? -1 : i;
+    }
+
+    /* True if a is b or one of b's ancestors. Commits with a generation at or below a's can not
+    * lead to a, so the walk stops there.*/
+    public boolean isAncestor(int a, int b) {
+        if (a < 0 || b < 0) return false;
+        int target = generation(a);
+        boolean[] seen = new boolean[count];
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = b;
+        while (top > 0) {
+            int c = stack[--top];
+            if (c == a) return true;
+            if (c < 0 || seen[c] || generation(c) <= target) continue;
+            seen[c] = true;
+            if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[top++] = parent(c);
+            stack[top++] = mergeParent(c);
+        }
+        return false;
+    }
+
+    private static final byte FROM_A = 1;
+    private static final byte FROM_B = 2;
+    private static final byte STALE = 4;
+
+    /* The lowest common ancestor of a and b: a common ancestor that is not an ancestor of another
+    * common ancestor. Both histories are walked together, highest generation first, so every
+    * commit is seen after all of its descendants; a commit reached from both sides is a
+    * candidate, and everything below it is marked stale. The walk ends when only stale commits
+    * are left. Returns -1 when the commits share no history.*/
+    public int mergeBase(int a, int b) {
+        if (a < 0 || b < 0) return -1;
+        if (a == b) return a;
+        byte[] flags = new byte[count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> {
+            int cmp = Integer.compare(generation(y), generation(x));
+            return cmp != 0 ? cmp : Long.compare(timestamp(y), timestamp(x));
+        });
+        flags[a] = FROM_A;
+        flags[b] = FROM_B;
+        queue.add(a);
+        queue.add(b);
+        int active = 2; //Queued commits that are not stale
+        ArrayList<Integer> candidates = new ArrayList<>();
+        while (active > 0) {
+            int c = queue.poll();
+            byte f = flags[c];
+            if ((f & STALE) == 0) {
+                active--;
+                if ((f & (FROM_A | FROM_B)) == (FROM_A | FROM_B)) {
+                    candidates.add(c);
+                    f |= STALE;
+                }
+            }
+            for (int p: new int[]{parent(c), mergeParent(c)}) {
+                if (p < 0 || (flags[p] & f) == f) continue;
+                boolean queued = flags[p] != 0;
+                boolean wasStale = (flags[p] & STALE) != 0;
+                flags[p] |= f;
+                boolean stale = (flags[p] & STALE) != 0;
+                if (!queued) {
+                    queue.add(p);
+                    if (!stale) active++;
+                } else if (stale && !wasStale) {
+                    active--;
+                }
+            }
+        }
+        //A candidate below another candidate is not a lowest common ancestor
+        int best = -1;
+        for (int c: candidates) {
+            boolean below = false;
+            for (int other: candidates) {
+                if (other != c && isAncestor(c, other)) {
+                    below = true;
+                    break;
+                }
+            }
+            if (!below && (best < 0 || generation(c) > generation(best))) best = c;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.*;
+import java.util.Properties;
+
+/* Repository settings, read from the properties file .javavc/config. Any setting can be overridden
+* for a single run with a system property of the same name prefixed by "javavc.", for example
+* java -Djavavc.add.threads=4 JavaVC add . */
+public class Config {
+    private static final String CONFIG_LOCATION = ".javavc/config";
+    private static Properties properties;
+
+    private static Properties load() {
+        if (properties == null) {
+            properties = new Properties();
+            File file = new File(CONFIG_LOCATION);
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    properties.load(in);
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+            }
+        }
+        return properties;
+    }
+
+    /* Forgets the settings read so far; they are read again on next use.*/
+    public static void reload() {
+        properties = null;
+    }
+
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty("javavc." + key);
+        if (value == null) value = load().getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /* Stores a setting in .javavc/config.*/
+    public static void set(String key, String value) {
+        Properties p = load();
+        p.setProperty(key, value);
+        File tmp = new File(CONFIG_LOCATION + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                p.store(out, null);
+            }
+            Durability.replace(tmp, new File(CONFIG_LOCATION));
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
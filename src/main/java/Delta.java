@@ -0,0 +1,137 @@
+import java.io.ByteArrayOutputStream;
+
+/* Binary deltas between two versions of an object. A delta is a list of instructions that either
+* copy a range of the base object or insert literal bytes:
+*   header: varint base size, varint result size
+*   copy:   0x80, varint offset, varint length
+*   insert: length (1..127), followed by that many bytes */
+public class Delta {
+    private static final int BLOCK = 16;
+    private static final int MAX_INSERT = 127;
+    private static final int COPY = 0x80;
+    private static final int MAX_CANDIDATES = 64; //Bounds the work on highly repetitive input
+
+    /* Returns a delta that turns base into target, or null when the delta would not be
+    * smaller than maxSize (in which case the target is better stored whole).*/
+    public static byte[] create(byte[] base, byte[] target, int maxSize) {
+        if (base.length < BLOCK || target.length < BLOCK) return null;
+        //Index every aligned block of the base by its hash; chains of equal hashes go through next[]
+        int blocks = base.length / BLOCK;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1)) * 2;
+        int[] table = new int[tableSize];
+        int[] next = new int[blocks];
+        for (int i = 0; i < tableSize; i++) table[i] = -1;
+        for (int b = blocks - 1; b >= 0; b--) {
+            int slot = blockHash(base, b * BLOCK) & (tableSize - 1);
+            next[b] = table[slot];
+            table[slot] = b;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, target.length) + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        int insertStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            int bestOffset = -1;
+            int bestLength = 0;
+            int hash = blockHash(target, i);
+            int candidates = 0;
+            for (int b = table[hash & (tableSize - 1)]; b != -1 && candidates++ < MAX_CANDIDATES; b = next[b]) {
+                int offset = b * BLOCK;
+                int length = 0;
+                while (offset + length < base.length && i + length < target.length && base[offset + length] == target[i + length]) {
+                    length++;
+                }
+                if (length > bestLength) {
+                    bestOffset = offset;
+                    bestLength = length;
+                }
+            }
+            if (bestLength < BLOCK) {
+                i++;
+                continue;
+            }
+            //Extend the match backwards into bytes that would otherwise be inserted
+            while (bestOffset > 0 && i > insertStart && base[bestOffset - 1] == target[i - 1]) {
+                bestOffset--;
+                i--;
+                bestLength++;
+            }
+            writeInsert(out, target, insertStart, i);
+            out.write(COPY);
+            writeVarint(out, bestOffset);
+            writeVarint(out, bestLength);
+            i += bestLength;
+            insertStart = i;
+            if (out.size() >= maxSize) return null;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.size() < maxSize ? out.toByteArray() : null;
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        int baseSize = readVarint(delta, pos);
+        int resultSize = readVarint(delta, pos);
+        if (baseSize != base.length) {
+            throw new IllegalArgumentException("Delta base size mismatch");
+        }
+        byte[] result = new byte[resultSize];
+        int r = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++] & 0xff;
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, result, r, length);
+                r += length;
+            } else {
+                System.arraycopy(delta, pos[0], result, r, op);
+                pos[0] += op;
+                r += op;
+            }
+        }
+        if (r != resultSize) {
+            throw new IllegalArgumentException("Corrupt delta");
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+
+    private static int blockHash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            h = h * 31 + data[offset + i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
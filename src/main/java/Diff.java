@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+/* Line diff between two sequences of line ids, using Myers' O(ND) algorithm in its linear space
+* form: each step finds the middle snake of the remaining edit graph by searching forward from
+* the start and backward from the end at the same time, then recurses on both halves. Apart
+* from the result, it needs two int arrays and two change flags per line.
+*
+* The result is a packed array of hunks, four ints each: the start and end of the changed range
+* in a, followed by the start and end of the range that replaces it in b.*/
+public class Diff {
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] changedA;
+    private final boolean[] changedB;
+    private final int[] forward;
+    private final int[] backward;
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.changedA = new boolean[a.length];
+        this.changedB = new boolean[b.length];
+        int size = a.length + b.length + 4;
+        this.forward = new int[size];
+        this.backward = new int[size];
+    }
+
+    public static int[] diff(int[] a, int[] b) {
+        Diff d = new Diff(a, b);
+        d.compare(0, a.length, 0, b.length);
+        return d.hunks();
+    }
+
+    public static int count(int[] hunks) {
+        return hunks.length / 4;
+    }
+
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi) {
+            for (int j = bLo; j < bHi; j++) changedB[j] = true;
+        } else if (bLo == bHi) {
+            for (int i = aLo; i < aHi; i++) changedA[i] = true;
+        } else {
+            long split = (aHi - aLo == 1 && bHi - bLo == 1) ? -1 : middleSnake(aLo, aHi, bLo, bHi);
+            if (split < 0) {
+                for (int i = aLo; i < aHi; i++) changedA[i] = true;
+                for (int j = bLo; j < bHi; j++) changedB[j] = true;
+                return;
+            }
+            int x = (int) (split >>> 32);
+            int y = (int) split;
+            compare(aLo, x, bLo, y);
+            compare(x, aHi, y, bHi);
+        }
+    }
+
+    /* Returns the point (x << 32 | y) where the forward and backward searches overlap, or -1 when
+    * the ranges share no line at all. forward[k] holds the furthest x reached on diagonal k
+    * (x - y = k, shifted by offset); backward[k] the same distance measured from the ends.*/
+    private long middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD + 1;
+        int length = 2 * maxD + 3;
+        for (int i = 0; i < length; i++) {
+            forward[i] = -1;
+            backward[i] = -1;
+        }
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        //Diagonals that ran off the edge of the graph are skipped in later rounds
+        int kStart1 = 0, kEnd1 = 0, kStart2 = 0, kEnd2 = 0;
+        for (int d = 0; d < maxD + 1; d++) {
+            for (int k = -d + kStart1; k <= d - kEnd1; k += 2) {
+                int i = offset + k;
+                int x = (k == -d || (k != d && forward[i - 1] < forward[i + 1])) ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    kEnd1 += 2;
+                } else if (y > m) {
+                    kStart1 += 2;
+                } else if (odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && backward[j] != -1 && x >= n - backward[j]) {
+                        return ((long) (aLo + x) << 32) | (bLo + y);
+                    }
+                }
+            }
+            for (int k = -d + kStart2; k <= d - kEnd2; k += 2) {
+                int i = offset + k;
+                int x = (k == -d || (k != d && backward[i - 1] < backward[i + 1])) ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    kEnd2 += 2;
+                } else if (y > m) {
+                    kStart2 += 2;
+                } else if (!odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && forward[j] != -1) {
+                        int x1 = forward[j];
+                        int y1 = x1 - (j - offset);
+                        if (x1 >= n - x) {
+                            return ((long) (aLo + x1) << 32) | (bLo + y1);
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* Groups the change flags into hunks. Unchanged lines of a and b pair up in order.*/
+    private int[] hunks() {
+        int count = 0;
+        int[] result = new int[16];
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if ((i < a.length && changedA[i]) || (j < b.length && changedB[j])) {
+                int i0 = i;
+                int j0 = j;
+                while (i < a.length && changedA[i]) i++;
+                while (j < b.length && changedB[j]) j++;
+                if (count + 4 > result.length) result = Arrays.copyOf(result, result.length * 2);
+                result[count++] = i0;
+                result[count++] = i;
+                result[count++] = j0;
+                result[count++] = j;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* How far writes are pushed to disk before a command reports success, chosen with the fsync setting:
+*
+*   none   nothing is synced. Fastest; after a power loss refs can point to objects that were lost.
+*   batch  (default) a command's new objects stay in temporary files until just before the first ref,
+*          stage or index update, or the end of the command. Then they are synced together, on
+*          several threads so the file system can commit them in one journal transaction, renamed
+*          into place, and each object directory they went into is synced once. Every ref or state
+*          file is synced before it is renamed over the old one, and its directory after.
+*   strict every object is synced, renamed and its directory synced as soon as it is written, and
+*          refs and state files as in batch.
+*
+* In both batch and strict a ref only ever names objects that are on disk, so a crash loses at
+* most the command that was running.*/
+public class Durability {
+    public enum Mode { NONE, BATCH, STRICT }
+
+    private static final int SYNC_THREADS = 16; //Syncs in flight at once during a batch
+
+    public static Mode mode() {
+        String value = Config.get("fsync", "batch");
+        switch (value) {
+            case "none": return Mode.NONE;
+            case "batch": return Mode.BATCH;
+            case "strict": return Mode.STRICT;
+            default:
+                System.out.println("Invalid value for fsync, using batch");
+                return Mode.BATCH;
+        }
+    }
+
+    /* Forces the file's content to disk, unless fsync is none.*/
+    public static void sync(File f) throws IOException {
+        if (mode() == Mode.NONE) return;
+        Stats.count(Stats.Counter.FILES_SYNCED, 1);
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /* Forces the names created or renamed in a directory to disk, unless fsync is none. Platforms
+    * that can not open a directory (Windows) make rename durable by themselves and are skipped.*/
+    public static void syncDirectory(File dir) {
+        if (mode() == Mode.NONE) return;
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+            Stats.count(Stats.Counter.FILES_SYNCED, 1);
+        } catch (IOException e) {
+            //Not supported here
+        }
+    }
+
+    /* Syncs all the files, several at a time.*/
+    public static void syncAll(Collection<File> files) throws IOException {
+        if (mode() == Mode.NONE || files.isEmpty()) return;
+        if (files.size() == 1) {
+            sync(files.iterator().next());
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.size(), SYNC_THREADS));
+        try {
+            List<Future<?>> syncs = new ArrayList<>();
+            for (File f: files) {
+                syncs.add(pool.submit(() -> {
+                    sync(f);
+                    return null;
+                }));
+            }
+            for (Future<?> s: syncs) s.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e.getCause() != null ? e.getCause() : e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /* Puts a finished temporary file in place of a ref or state file. The objects written so far
+    * are flushed first, so the new state never names an object a crash could lose; then the file
+    * is synced, renamed over dest and the rename synced.*/
+    public static void replace(File tmp, File dest) throws IOException {
+        ObjectStore.flushStaged();
+        long start = Stats.start();
+        sync(tmp);
+        if (!tmp.renameTo(dest)) {
+            dest.delete();
+            tmp.renameTo(dest);
+        }
+        syncDirectory(dest.getAbsoluteFile().getParentFile());
+        Stats.time(Stats.Phase.SYNC, start);
+    }
+}
@@ -0,0 +1,135 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/* JDK Flight Recorder events for the expensive steps of a command, recorded when a recording is
+* running, e.g. java -XX:StartFlightRecording=filename=javavc.jfr JavaVC add .
+* and shown under JavaVC in JDK Mission Control or jfr print --categories JavaVC javavc.jfr
+*
+* Loading the first event class loads the recorder itself, about a hundred classes, so events are
+* only created through the methods below, which return null until the recorder has been started
+* (at launch or later with jcmd JFR.start). Callers commit an event only when they got one.*/
+public class Events {
+    private static boolean started; //Once started, the recorder stays initialized
+
+    static boolean enabled() {
+        if (!started) started = FlightRecorder.isInitialized();
+        return started;
+    }
+
+    static HashFile hashFile() {
+        if (!enabled()) return null;
+        HashFile event = new HashFile();
+        event.begin();
+        return event;
+    }
+
+    static StoreFile storeFile() {
+        if (!enabled()) return null;
+        StoreFile event = new StoreFile();
+        event.begin();
+        return event;
+    }
+
+    static WriteCommit writeCommit() {
+        if (!enabled()) return null;
+        WriteCommit event = new WriteCommit();
+        event.begin();
+        return event;
+    }
+
+    static ReadCommit readCommit() {
+        if (!enabled()) return null;
+        ReadCommit event = new ReadCommit();
+        event.begin();
+        return event;
+    }
+
+    static WriteFile writeFile() {
+        if (!enabled()) return null;
+        WriteFile event = new WriteFile();
+        event.begin();
+        return event;
+    }
+
+    static MergeFile mergeFile() {
+        if (!enabled()) return null;
+        MergeFile event = new MergeFile();
+        event.begin();
+        return event;
+    }
+
+    @Name("javavc.HashFile")
+    @Label("Hash File")
+    @Category("JavaVC")
+    @Description("Reading and hashing a working tree file")
+    static class HashFile extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("javavc.StoreFile")
+    @Label("Store File")
+    @Category("JavaVC")
+    @Description("Hashing a working tree file and storing it as a blob")
+    static class StoreFile extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Chunked")
+        boolean chunked;
+    }
+
+    @Name("javavc.WriteCommit")
+    @Label("Write Commit")
+    @Category("JavaVC")
+    static class WriteCommit extends Event {
+        @Label("Commit")
+        String hash;
+    }
+
+    @Name("javavc.ReadCommit")
+    @Label("Read Commit")
+    @Category("JavaVC")
+    @Description("Loading a commit that was not in the object cache")
+    static class ReadCommit extends Event {
+        @Label("Commit")
+        String hash;
+    }
+
+    @Name("javavc.WriteFile")
+    @Label("Write Working Tree File")
+    @Category("JavaVC")
+    @Description("Writing, keeping or deleting one file in checkout, reset or merge")
+    static class WriteFile extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Written")
+        boolean written;
+    }
+
+    @Name("javavc.MergeFile")
+    @Label("Merge File")
+    @Category("JavaVC")
+    @Description("Line-by-line merge of a file changed on both branches")
+    static class MergeFile extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Conflicts")
+        boolean conflicts;
+    }
+}
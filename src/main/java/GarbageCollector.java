@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/* Removes the objects nothing refers to any more: blobs of intermediate versions that were added
+* but never committed, and commits (with their trees and blobs) undone by reset.
+*
+* Every stored object gets a number, kept in an ObjectIdMap, and marking sets that bit in a BitSet,
+* so the walk needs a bit per object rather than a set of hash strings.
+* Starting from the given commits, it follows parents, merge parents and the global order (which
+* log --global and reset walk), and each commit's tree; a tree already marked is not read again,
+* since everything below it is marked too. Unmarked objects stored within the grace period are
+* kept, as a command running at the same time may be about to refer to them.*/
+public class GarbageCollector {
+    private final ObjectStore objects;
+    private final String[] hashes; //Every stored object: an object's number is its position
+    private final ObjectIdMap numbers;
+    private final BitSet marked;
+    private int missing; //References to objects that are not stored
+
+    public GarbageCollector(ObjectStore objects) {
+        this.objects = objects;
+        List<String> loose = objects.looseObjects();
+        List<String> packed = objects.packedObjects();
+        numbers = new ObjectIdMap(loose.size() + packed.size());
+        ArrayList<String> all = new ArrayList<>(loose.size() + packed.size());
+        for (List<String> names: List.of(loose, packed)) {
+            for (String hash: names) {
+                //Files that are not named by an object id are left alone
+                if (ObjectId.isHex(hash) && !numbers.contains(hash)) {
+                    numbers.put(hash, all.size());
+                    all.add(hash);
+                }
+            }
+        }
+        hashes = all.toArray(new String[0]);
+        marked = new BitSet(hashes.length);
+    }
+
+    /* Marks the object; returns false when it was marked already or is not stored.*/
+    private boolean mark(String hash) {
+        if (hash == null) return false;
+        int i = numbers.get(hash);
+        if (i < 0) {
+            missing++;
+            return false;
+        }
+        if (marked.get(i)) return false;
+        marked.set(i);
+        return true;
+    }
+
+    /* Marks a file's blob, and its chunks when it is stored in chunks.*/
+    private void markBlob(String hash) throws IOException {
+        if (!mark(hash)) return;
+        List<String> chunks = objects.chunksOf(hash);
+        if (chunks != null) {
+            for (String chunk: chunks) mark(chunk);
+        }
+    }
+
+    /* Marks everything reachable from the commits, and the blobs themselves.*/
+    public void markReachable(Collection<String> commits, Collection<String> blobs) throws IOException {
+        ArrayList<String> commitStack = new ArrayList<>();
+        ArrayList<String> treeStack = new ArrayList<>();
+        ArrayList<String> subtrees = new ArrayList<>();
+        ArrayList<String> files = new ArrayList<>();
+        for (String hash: commits) {
+            if (mark(hash)) commitStack.add(hash);
+        }
+        for (String hash: blobs) markBlob(hash);
+        while (!commitStack.isEmpty()) {
+            Commit c = Commit.deserializeCommit(commitStack.remove(commitStack.size() - 1));
+            if (c == null) continue;
+            for (String parent: new String[]{c.getPrevCommitHash(), c.getMergeParentHash(), c.getGlobalPrevCommitHash()}) {
+                if (mark(parent)) commitStack.add(parent);
+            }
+            if (c.getTreeHash() == null) {
+                for (String blob: c.getStagedFiles().values()) markBlob(blob);
+            } else if (mark(c.getTreeHash())) {
+                treeStack.add(c.getTreeHash());
+            }
+            while (!treeStack.isEmpty()) {
+                subtrees.clear();
+                files.clear();
+                Tree.read(treeStack.remove(treeStack.size() - 1)).children(subtrees, files);
+                for (String tree: subtrees) {
+                    if (mark(tree)) treeStack.add(tree);
+                }
+                for (String blob: files) markBlob(blob);
+            }
+        }
+    }
+
+    /* Deletes the unmarked objects stored before cutoff (milliseconds since the epoch). Packs
+    * holding such objects are rewritten without them.*/
+    public void sweep(long cutoff) throws IOException {
+        BitSet prune = new BitSet(hashes.length);
+        boolean packed = false;
+        for (int i = marked.nextClearBit(0); i < hashes.length; i = marked.nextClearBit(i + 1)) {
+            if (objects.storedTime(hashes[i]) < cutoff) {
+                prune.set(i);
+                packed |= objects.isPacked(hashes[i]);
+            }
+        }
+        if (packed) {
+            objects.repack(hash -> {
+                int i = numbers.get(hash);
+                return i < 0 || !prune.get(i); //Objects stored since the list was made are kept
+            });
+        }
+        for (int i = prune.nextSetBit(0); i >= 0; i = prune.nextSetBit(i + 1)) {
+            objects.deleteLoose(hashes[i]);
+        }
+        System.out.println("Removed " + prune.cardinality() + " of " + hashes.length + " objects, "
+                + (hashes.length - marked.cardinality() - prune.cardinality()) + " unreachable objects kept for the grace period");
+        if (missing > 0) System.out.println(missing + " references to objects that are not stored");
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/* Stat cache of the working tree. For every tracked path it remembers the size, modification
+* time and file key (the inode on unix) the file had when its blob hash was last computed, so
+* that files whose stat data did not change never have to be read and hashed again.
+* Every hash recorded here refers to a blob that is already stored under .javavc.
+* Paths a sparse checkout leaves out of the working directory are kept as skip-worktree entries:
+* the blob they are tracked with, and no stat data. */
+public class Index {
+    static final String INDEX_LOCATION = ".javavc/index";
+    private static final int INDEX_VERSION = 2; //1 had no skip-worktree flag
+    private TreeMap<String, Entry> entries;
+    private long indexTime; //Modification time of the index file when it was loaded
+    private boolean dirty;
+
+    static class Entry {
+        long size;
+        long mtime;
+        String fileKey;
+        String hash;
+        boolean skipWorktree;
+
+        Entry(long size, long mtime, String fileKey, String hash, boolean skipWorktree) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.hash = hash;
+            this.skipWorktree = skipWorktree;
+        }
+    }
+
+    private Index() {
+        entries = new TreeMap<>();
+        indexTime = Long.MIN_VALUE;
+        dirty = false;
+    }
+
+    public static Index load() {
+        Index index = new Index();
+        File file = new File(INDEX_LOCATION);
+        if (!file.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt();
+            if (version != INDEX_VERSION && version != 1) {
+                //Unknown format: start from an empty cache, every file will simply be rehashed once
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String fileKey = in.readUTF();
+                String hash = in.readUTF();
+                boolean skipWorktree = version >= 2 && in.readBoolean();
+                index.entries.put(path, new Entry(size, mtime, fileKey, hash, skipWorktree));
+            }
+            index.indexTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            System.out.println(e);
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    public void save() {
+        if (!dirty || !new File(".javavc").exists()) {
+            return;
+        }
+        File tmp = new File(INDEX_LOCATION + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (String path: entries.keySet()) {
+                Entry e = entries.get(path);
+                out.writeUTF(path);
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeUTF(e.fileKey);
+                out.writeUTF(e.hash);
+                out.writeBoolean(e.skipWorktree);
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        File file = new File(INDEX_LOCATION);
+        try {
+            Durability.replace(tmp, file);
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        try {
+            indexTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            indexTime = Long.MIN_VALUE;
+        }
+        dirty = false;
+    }
+
+    /* Returns the stored hash of the file at path if its stat data still matches the entry, or null
+    * if the file has to be rehashed. Files modified in the same clock tick the index was written
+    * in are always considered changed, since a later write in that tick would leave the mtime as is. */
+    public String cachedHash(String path, BasicFileAttributes attrs) {
+        Entry e = entries.get(path);
+        if (e == null || e.skipWorktree) return null;
+        long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (e.size != attrs.size() || e.mtime != mtime || !e.fileKey.equals(fileKey(attrs))) return null;
+        if (mtime >= indexTime) return null;
+        return e.hash;
+    }
+
+    public String getHash(String path) {
+        Entry e = entries.get(path);
+        return e == null ? null : e.hash;
+    }
+
+    public void update(String path, BasicFileAttributes attrs, String hash) {
+        entries.put(path, new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey(attrs), hash, false));
+        dirty = true;
+    }
+
+    /* Records that the path is tracked with the blob but left out of the working directory.*/
+    public void skipWorktree(String path, String hash) {
+        Entry e = entries.get(path);
+        if (e != null && e.skipWorktree && e.hash.equals(hash)) return;
+        entries.put(path, new Entry(-1, 0, "", hash, true));
+        dirty = true;
+    }
+
+    public boolean isSkipWorktree(String path) {
+        Entry e = entries.get(path);
+        return e != null && e.skipWorktree;
+    }
+
+    public void remove(String path) {
+        if (entries.remove(path) != null) {
+            dirty = true;
+        }
+    }
+
+    public Set<String> paths() {
+        return entries.keySet();
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? "" : key.toString();
+    }
+}
@@ -1,21 +1,55 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
-public class JavaVC implements Serializable {
+public class JavaVC {
     private static final String author = "Peter Gang";
-    private static final long serialVersionUID = 3945195870018540923L;
-    private Commit HEAD;
-    private Commit latestCommit;
+    private static final String HEAD_LOCATION = ".javavc/HEAD";
+    private static final String LATEST_LOCATION = ".javavc/LATEST";
+    private static final String STAGE_LOCATION = ".javavc/stage";
+    private static final String MERGE_HEAD_LOCATION = ".javavc/MERGE_HEAD";
+    //Take no lock and write no refs: they only read, or (monitor, server) run until stopped
+    private static final Set<String> READ_ONLY_COMMANDS = Set.of("status", "diff", "log", "blame", "upload-pack", "monitor", "server");
+    private String HEAD; //Hash of the HEAD commit
+    private String latestCommit; //Hash of the most recent commit on any branch
     private String currentBranch; //Current Branch of the HEAD commit
     private HashMap<String, String> stagedFiles; //Files ready to be committed
     private HashSet<String> removedFiles; //Files not present in the new staging area
-    private HashMap<String, Commit> branchNameToBranchHeadCommit;
+    private HashMap<String, String> branchNameToBranchHeadCommit; //Branch name to the hash of its head commit
     private HashSet<String> ALLOWED_SUFFIXES;
-    private HashMap<String, Commit> mergeSplitPoints;
+    private String mergeHead; //Head of the branch merged into the staging area, the second parent of the next commit
+    private Index index; //Stat cache of the working tree, stored separately in .javavc/index
+    private Monitor monitor; //Changes reported by the file system monitor, null when it is not running
+    private boolean monitorChecked;
+    private boolean failed; //The command could not do all it was asked to: the process exits with status 1
+    private RepositoryState loadedState; //What was read from disk, so that only changed state is written back
+    private ObjectStore objects = ObjectStore.open();
+    private static final ThreadLocal<MessageDigest> BLOB_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
     public static File cwd = new File(System.getProperty("user.dir"));
 
     public JavaVC() {
@@ -25,7 +59,6 @@ public class JavaVC implements Serializable {
         removedFiles = new HashSet<>();
         ALLOWED_SUFFIXES = new HashSet<>();
         branchNameToBranchHeadCommit = new HashMap<>();
-        mergeSplitPoints = new HashMap<>();
         ALLOWED_SUFFIXES.add(".txt");
         branchNameToBranchHeadCommit.put("master", HEAD);
     }
@@ -37,6 +70,7 @@ public class JavaVC implements Serializable {
         File folder = new File (".javavc");
         if (!folder.exists()) {
             folder.mkdir();
+            LegacyMigration.writeObjectFormat();
             this.currentBranch = "master";
             branchNameToBranchHeadCommit.put("master", HEAD);
             this.commit("Initial commit", true);
@@ -46,6 +80,11 @@ public class JavaVC implements Serializable {
         }
     }
 
+    /* Loads a commit by hash, or returns null for a branch without commits.*/
+    private Commit getCommit(String hash) {
+        return hash == null ? null : Commit.deserializeCommit(hash);
+    }
+
     /* Equivalent of git commit: takes all the files from the staging area and serializes the Commit. */
     private void commit(String commitMessage, boolean isFirst) {
         if (commitMessage.equals("")) {
@@ -56,55 +95,203 @@ public class JavaVC implements Serializable {
             System.out.println("No changes made. Aborting");
             return;
         }
-        Commit commit = new Commit(branchNameToBranchHeadCommit.get(currentBranch), latestCommit, currentBranch, commitMessage, author, new HashMap<>(stagedFiles), new HashSet<>(removedFiles));
+        String tree;
+        long treeStart = Stats.start();
+        try {
+            HashMap<String, String> files = new HashMap<>(stagedFiles);
+            //Paths outside the sparse checkout can not be added from the working directory: they keep their recorded blob
+            for (String path: index.paths()) {
+                if (index.isSkipWorktree(path) && !removedFiles.contains(path)) files.putIfAbsent(path, index.getHash(path));
+            }
+            tree = Tree.of(files).write(objects);
+            Stats.time(Stats.Phase.COMMIT, treeStart);
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        long start = Stats.start();
+        Commit commit = new Commit(branchNameToBranchHeadCommit.get(currentBranch), mergeHead, latestCommit, currentBranch, commitMessage, author,
+                tree, new HashSet<>(removedFiles));
         commit.serializeCommit();
-        HEAD = commit;
-        latestCommit = commit;
+        CommitGraph.open().add(commit);
+        Stats.time(Stats.Phase.COMMIT, start);
+        mergeHead = null;
+        HEAD = commit.getCommitHash();
+        latestCommit = commit.getCommitHash();
         stagedFiles = new HashMap<>();
         removedFiles = new HashSet<>();
-        branchNameToBranchHeadCommit.put(currentBranch, commit);
+        branchNameToBranchHeadCommit.put(currentBranch, commit.getCommitHash());
 
     }
 
-    /* Generate hash for the blob and store the object under blobs*/
+    /* Generate hash for the blob and store the object in the object store. Files of at least
+    * chunk.threshold bytes (0 turns chunking off) are stored in chunks.*/
     public String serializeAndWriteFile(File f) {
-        File blobDir = new File(".javavc/blobs");
-        if (!blobDir.exists()) {
-            blobDir.mkdirs();
-        }
+        Events.StoreFile event = Events.storeFile();
+        long start = Stats.start();
+        boolean chunked = false;
         try {
-            String hash = generateBlobHash(f);
-            String path = ".javavc/blobs/" + hash;
-            File blobDest = new File(path);
-            if (!blobDest.exists()) {
-                blobDest.mkdirs();
+            int threshold = Config.getInt("chunk.threshold", 1024 * 1024);
+            if (threshold > 0 && f.length() >= threshold) {
+                chunked = true;
+                Stats.count(Stats.Counter.FILES_HASHED, 1);
+                Stats.count(Stats.Counter.BYTES_HASHED, f.length());
+                return objects.writeChunked(f);
             }
-            Files.copy(f.toPath(), (new File(path + "/" + f.getName())).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            String hash = generateBlobHash(f);
+            if (hash.equals("")) return hash;
+            long storeStart = Stats.start();
+            objects.writeFile(hash, ObjectStore.BLOB, f);
+            Stats.time(Stats.Phase.STORE, storeStart);
             return hash;
         } catch (IOException e) {
             System.out.println(e);
             return "";
+        } finally {
+            if (chunked) Stats.time(Stats.Phase.STORE, start);
+            if (event != null) {
+                event.path = path(f);
+                event.bytes = f.length();
+                event.chunked = chunked;
+                event.commit();
+            }
+        }
+    }
+
+    /* A file that was hashed and stored for the staging area, and the stat data to record for it.*/
+    private static class StagedFile {
+        final String name;
+        final BasicFileAttributes attrs;
+        final String hash;
+        final boolean rehashed;
+
+        StagedFile(String name, BasicFileAttributes attrs, String hash, boolean rehashed) {
+            this.name = name;
+            this.attrs = attrs;
+            this.hash = hash;
+            this.rehashed = rehashed;
+        }
+    }
+
+    /* Returns the blob hash of a working tree file, only reading and storing the file
+    * when its stat data differs from what the index recorded for it. Only reads the index,
+    * so it can run on several files at once.*/
+    private StagedFile hashAndStore(File f) throws IOException {
+        if (monitor != null && monitor.isClean(path(f)) && index.getHash(path(f)) != null) {
+            return new StagedFile(path(f), null, index.getHash(path(f)), false);
+        }
+        Stats.count(Stats.Counter.FILES_STATTED, 1);
+        BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        String hash = index.cachedHash(path(f), attrs);
+        if (hash != null) return new StagedFile(path(f), attrs, hash, false);
+        return new StagedFile(path(f), attrs, serializeAndWriteFile(f), true);
+    }
+
+    private String stageFile(File f) {
+        try {
+            StagedFile staged = hashAndStore(f);
+            indexStaged(staged);
+            return staged.hash;
+        } catch (IOException e) {
+            System.out.println(e);
+            return "";
         }
     }
 
-    private String generateBlobHash(File f) {
+    /* Hashes and stores the files on add.threads threads (all cores by default). The results are
+    * applied to the index and staging area afterwards, in path order, so the outcome does not
+    * depend on which thread finished first.*/
+    private void stageFiles(List<File> files) {
+        files.sort((a, b) -> path(a).compareTo(path(b)));
+        int threads = Math.min(files.size(), Config.getInt("add.threads", Runtime.getRuntime().availableProcessors()));
+        if (threads <= 1) {
+            for (File f: files) {
+                stagedFiles.put(path(f), stageFile(f));
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            InputStream fi = new FileInputStream(f);
-            int n = 0;
-            byte[] buffer = new byte[8192];
-            while (n != -1) {
-                n = fi.read(buffer); //read 8192 bytes at a time for hash digest
-                if (n > 0) {
-                    md.update(buffer, 0, n);
+            ArrayList<Future<StagedFile>> results = new ArrayList<>();
+            for (File f: files) {
+                results.add(pool.submit(() -> hashAndStore(f)));
+            }
+            for (Future<StagedFile> result: results) {
+                try {
+                    StagedFile staged = result.get();
+                    indexStaged(staged);
+                    stagedFiles.put(staged.name, staged.hash);
+                } catch (ExecutionException e) {
+                    System.out.println(e.getCause());
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void indexStaged(StagedFile staged) {
+        if (staged.hash.equals("")) return;
+        if (staged.rehashed) index.update(staged.name, staged.attrs, staged.hash);
+        if (monitor != null) monitor.verified(staged.name);
+    }
+
+    /* Hash of a working tree file for comparison only. When the content turns out to match the
+    * blob recorded in the index, the entry's stat data is refreshed so the next run can skip it. */
+    private String workingFileHash(File f) {
+        try {
+            if (monitor != null && monitor.isClean(path(f)) && index.getHash(path(f)) != null) return index.getHash(path(f));
+            Stats.count(Stats.Counter.FILES_STATTED, 1);
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            String hash = index.cachedHash(path(f), attrs);
+            if (hash == null) {
+                hash = generateBlobHash(f);
+                if (hash.equals(index.getHash(path(f)))) {
+                    index.update(path(f), attrs, hash);
+                }
+            }
+            if (hash.equals(index.getHash(path(f))) && monitor != null) monitor.verified(path(f));
+            return hash;
+        } catch (IOException e) {
+            System.out.println(e);
+            return "";
+        }
+    }
+
+    static String generateBlobHash(File f) {
+        //Each hashing thread keeps its digest and read buffer for all the files it hashes
+        MessageDigest md = BLOB_DIGEST.get();
+        ByteBuffer buffer = HASH_BUFFER.get();
+        Events.HashFile event = Events.hashFile();
+        long start = Stats.start();
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            int n;
+            while ((n = channel.read(buffer)) != -1) {
+                bytes += n;
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
             byte[] SHA1 = md.digest();
-            return convertToHex(SHA1, false);
+            return ObjectId.toHex(SHA1);
 
         } catch (Exception e) {
+            md.reset();
             System.out.println(e);
             return "";
+        } finally {
+            Stats.time(Stats.Phase.HASH, start);
+            Stats.count(Stats.Counter.FILES_HASHED, 1);
+            Stats.count(Stats.Counter.BYTES_HASHED, bytes);
+            if (event != null) {
+                event.path = path(f);
+                event.bytes = bytes;
+                event.commit();
+            }
         }
     }
 
@@ -116,6 +303,91 @@ public class JavaVC implements Serializable {
         return true;
     }
 
+    /* Path of a file relative to the repository root, with '/' between directories.*/
+    static String path(File f) {
+        String path = f.getPath().replace(File.separatorChar, '/');
+        while (path.startsWith("./")) path = path.substring(2);
+        return path;
+    }
+
+    /* Every allowed file in the working directory and its subdirectories. Directories whose name
+    * starts with a dot, like .javavc itself, are skipped. When the monitor is running, only the
+    * paths it saw change are listed again.*/
+    private List<File> workingFiles() {
+        long start = Stats.start();
+        try {
+            return listWorkingFiles();
+        } finally {
+            Stats.time(Stats.Phase.SCAN, start);
+        }
+    }
+
+    private List<File> listWorkingFiles() {
+        if (!monitorChecked) {
+            monitor = Monitor.connect();
+            monitorChecked = true;
+        }
+        ArrayList<File> files = new ArrayList<>();
+        if (monitor == null) {
+            addWorkingFiles(cwd, "", files);
+            return files;
+        }
+        for (String name: monitor.workingFiles(this::scanWorkingFiles)) {
+            files.add(new File(name));
+        }
+        return files;
+    }
+
+    /* Allowed files at or below path, "" being the whole working directory.*/
+    private List<String> scanWorkingFiles(String path) {
+        ArrayList<File> found = new ArrayList<>();
+        File f = path.isEmpty() ? cwd : new File(cwd, path);
+        if (f.isDirectory()) addWorkingFiles(f, path.isEmpty() ? "" : path + "/", found);
+        else if (f.isFile() && isAllowedFile(f.getName())) found.add(new File(path));
+        ArrayList<String> names = new ArrayList<>();
+        for (File file: found) names.add(path(file));
+        return names;
+    }
+
+    private void addWorkingFiles(File dir, String prefix, List<File> files) {
+        File[] children = dir.listFiles();
+        Stats.count(Stats.Counter.DIRECTORIES_LISTED, 1);
+        if (children == null) return;
+        for (File f: children) {
+            if (f.isDirectory()) {
+                if (!f.getName().startsWith(".")) addWorkingFiles(f, prefix + f.getName() + "/", files);
+            } else if (f.isFile() && isAllowedFile(f.getName())) {
+                files.add(new File(prefix + f.getName()));
+            }
+        }
+    }
+
+    /* A file is tracked when it is staged, or was committed at HEAD and not removed since.
+    * Returns file name to the blob hash it is tracked with.*/
+    private HashMap<String, String> trackedFiles() {
+        HashMap<String, String> trackedFiles = new HashMap<>();
+        Commit head = getCommit(HEAD);
+        if (head != null) trackedFiles.putAll(head.getStagedFiles());
+        trackedFiles.putAll(stagedFiles);
+        for (String s: removedFiles) trackedFiles.remove(s);
+        return trackedFiles;
+    }
+
+    /* Renames from the removed paths to the added ones, and with mode copies also copies of the
+    * modified paths' old content (path to blob hash for all three). Files are read from the object
+    * store, or from the working directory when their blob is not stored yet.*/
+    private List<Renames.Pair> detectRenames(Map<String, String> removed, Map<String, String> added, Map<String, String> modified, String mode) {
+        if (added.isEmpty() || (removed.isEmpty() && !mode.equals("copies"))) return new ArrayList<>();
+        Renames renames = new Renames((path, hash) -> objects.contains(hash) ? objects.read(hash) : Files.readAllBytes(new File(path).toPath()),
+                Config.getInt("diff.renameThreshold", 50));
+        try {
+            return renames.detect(removed, added, mode.equals("copies") ? modified : null);
+        } catch (IOException e) {
+            System.out.println(e);
+            return new ArrayList<>();
+        }
+    }
+
     public void status() {
         System.out.println("Branches:\n");
         for (String b: branchNameToBranchHeadCommit.keySet()) {
@@ -126,10 +398,47 @@ public class JavaVC implements Serializable {
         for (String key: stagedFiles.keySet()) {
             System.out.printf("\t%s\n", key);
         }
-        System.out.println("\nFiles not staged for commit \n");
-        for (File f: cwd.listFiles()) {
-            if (isAllowedFile(f.getName()) && !stagedFiles.containsKey(f.getName())) {
-                System.out.printf("\t%s\n", f.getName());
+        HashMap<String, String> trackedFiles = trackedFiles();
+
+        System.out.println("\nFiles not staged for commit:\n");
+        HashSet<String> present = new HashSet<>();
+        HashMap<String, String> modified = new HashMap<>();
+        for (File f: workingFiles()) {
+            present.add(path(f));
+            if (index.isSkipWorktree(path(f))) continue; //Outside the sparse checkout
+            String expected = trackedFiles.get(path(f));
+            if (expected != null && !expected.equals(workingFileHash(f))) {
+                System.out.printf("\tmodified: %s\n", path(f));
+                modified.put(path(f), expected);
+            }
+        }
+        HashMap<String, String> deleted = new HashMap<>();
+        for (String s: trackedFiles.keySet()) {
+            if (!present.contains(s) && !index.isSkipWorktree(s)) deleted.put(s, trackedFiles.get(s));
+        }
+        HashSet<String> paired = new HashSet<>(); //Deleted and untracked files shown as a rename or copy
+        String renameMode = Renames.mode("diff.renames");
+        if (!renameMode.equals("false")) {
+            HashMap<String, String> untracked = new HashMap<>();
+            for (String s: present) {
+                if (!trackedFiles.containsKey(s)) untracked.put(s, generateBlobHash(new File(s)));
+            }
+            for (Renames.Pair p: detectRenames(deleted, untracked, modified, renameMode)) {
+                System.out.printf("\t%s: %s\n", p.copy ? "copied" : "renamed", p);
+                if (!p.copy) paired.add(p.from);
+                paired.add(p.to);
+            }
+        }
+        for (String s: trackedFiles.keySet()) {
+            if (deleted.containsKey(s) && !paired.contains(s)) {
+                System.out.printf("\tdeleted: %s\n", s);
+            }
+        }
+
+        System.out.println("\nUntracked files:\n");
+        for (String s: present) {
+            if (!trackedFiles.containsKey(s) && !paired.contains(s)) {
+                System.out.printf("\t%s\n", s);
             }
         }
 
@@ -140,27 +449,113 @@ public class JavaVC implements Serializable {
 
     }
 
+    /* diff: working tree against the staging area
+    * diff --staged: staging area against HEAD
+    * diff commitA commitB: between two commits
+    * Files with the same blob hash on both sides are skipped without reading them, and so are
+    * directories with the same tree hash. With diff.renames, removed files are paired with added
+    * ones of similar content (in the working tree, untracked files) and shown as renames.*/
+    public void diff(String[] args) {
+        TreeMap<String, String[]> changes = new TreeMap<>(); //Path to its old and new blob hash
+        boolean workingTree = false;
+        String renameMode = Renames.mode("diff.renames");
+        HashMap<String, String> untracked = new HashMap<>();
+        HashMap<String, Renames.Pair> renamedTo = new HashMap<>();
+        try {
+            if (args.length == 0) {
+                HashMap<String, String> tracked = trackedFiles();
+                HashSet<String> present = new HashSet<>();
+                for (File f: workingFiles()) {
+                    String expected = tracked.get(path(f));
+                    if (expected == null && !renameMode.equals("false") && !index.isSkipWorktree(path(f))) {
+                        untracked.put(path(f), generateBlobHash(f));
+                    }
+                    if (expected == null || index.isSkipWorktree(path(f))) continue;
+                    present.add(path(f));
+                    String hash = workingFileHash(f);
+                    if (!expected.equals(hash)) changes.put(path(f), new String[]{expected, hash});
+                }
+                for (String name: tracked.keySet()) {
+                    if (!present.contains(name) && !index.isSkipWorktree(name)) changes.put(name, new String[]{tracked.get(name), null});
+                }
+                workingTree = true;
+            } else if (args.length == 1 && args[0].equals("--staged")) {
+                Commit head = getCommit(HEAD);
+                Tree.diff(head == null ? null : head.getTree(), Tree.of(trackedFiles()), "", (path, oldHash, newHash) -> changes.put(path, new String[]{oldHash, newHash}));
+            } else if (args.length == 2) {
+                for (int i = 0; i < 2; i++) {
+                    args[i] = ObjectStore.open().resolve(args[i]);
+                    if (args[i] == null) return;
+                }
+                for (String hash: args) {
+                    if (!Commit.exists(hash)) {
+                        System.out.println("Commit at " + hash + " does not exist");
+                        return;
+                    }
+                }
+                Tree.diff(getCommit(args[0]).getTree(), getCommit(args[1]).getTree(), "", (path, oldHash, newHash) -> changes.put(path, new String[]{oldHash, newHash}));
+            } else {
+                System.out.println("Usage: diff [--staged | commitA commitB]");
+                return;
+            }
+            if (!renameMode.equals("false")) {
+                HashMap<String, String> removed = new HashMap<>(); //As for status, a rename source is its old content
+                HashMap<String, String> added = new HashMap<>(untracked);
+                HashMap<String, String> modified = new HashMap<>();
+                for (Map.Entry<String, String[]> e: changes.entrySet()) {
+                    String[] change = e.getValue();
+                    if (change[1] == null) removed.put(e.getKey(), change[0]);
+                    else if (change[0] == null) added.put(e.getKey(), change[1]);
+                    else modified.put(e.getKey(), change[0]);
+                }
+                for (Renames.Pair p: detectRenames(removed, added, modified, renameMode)) {
+                    renamedTo.put(p.to, p);
+                    if (!p.copy) changes.remove(p.from);
+                    changes.put(p.to, new String[]{p.fromHash, p.toHash});
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
+        try {
+            for (String name: changes.keySet()) {
+                String oldHash = changes.get(name)[0];
+                String newHash = changes.get(name)[1];
+                byte[] oldData = oldHash == null ? null : objects.read(oldHash);
+                byte[] newData = null;
+                if (newHash != null) {
+                    newData = workingTree ? Files.readAllBytes(new File(name).toPath()) : objects.read(newHash);
+                }
+                Renames.Pair pair = renamedTo.get(name);
+                if (pair != null) UnifiedDiff.write(pair.from, name, oldData, newData, pair.header(), out);
+                else UnifiedDiff.write(oldHash == null ? null : name, newHash == null ? null : name, oldData, newData, out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
     public void add(String arg, String fileName) {
         if (arg.equals("-f")) {
             File f = new File(fileName);
-            String hash = serializeAndWriteFile(f);
-            stagedFiles.put(f.getName(), hash);
+            String hash = stageFile(f);
+            stagedFiles.put(path(f), hash);
         } else if (arg.equals(".")) {
-            for (File f: cwd.listFiles()) {
-                if (isAllowedFile(f.toString())) {
-                    File fi = new File(f.getName());
-                    String hash = serializeAndWriteFile(fi);
-                    stagedFiles.put(f.getName(), hash);
-                }
-
-            }
+            List<File> files = workingFiles();
+            files.removeIf(f -> index.isSkipWorktree(path(f)));
+            stageFiles(files);
         }
     }
 
     public void rm(String fileName) {
+        fileName = path(new File(fileName));
         if (stagedFiles.containsKey(fileName)) {
             removedFiles.add(fileName);
             stagedFiles.remove(fileName);
+            index.remove(fileName);
             File file = new File(fileName);
             file.delete();
         } else {
@@ -168,88 +563,276 @@ public class JavaVC implements Serializable {
         }
     }
 
-    public void log(String arg) {
-        Commit h = arg.equals("--global") ? latestCommit : HEAD;
-        while (h != null) {
-            System.out.println("commit " + h.getCommitHash());
-            System.out.println("Author: " + h.getCommitAuthor());
-            System.out.println("Date: " + h.getCommitDate());
-            System.out.println("Branch: " + h.getCommitBranch());
-            System.out.printf("\n\n\t%s\n\n\n", h.getCommitMessage());
-            if (!arg.equals("--global")) {
-                h = h.getPrevCommit();
-            } else {
-                h = h.getGlobalPrevCommit();
+    /* Prints the history of HEAD, or with --global every commit in the order they were made, newest
+    * first. -n limits the number of commits printed, --author keeps those whose author contains the
+    * given text and --since stops at the first commit older than the date. With -- <path>, only
+    * commits that changed the file or directory against their first parent are printed: the
+    * commit graph's changed path filters rule out most commits without reading them. Each commit
+    * is written out as soon as it is found.*/
+    public void log(String[] args) {
+        boolean global = false;
+        int limit = Integer.MAX_VALUE;
+        String author = null;
+        long since = Long.MIN_VALUE;
+        String path = null;
+        try {
+            for (int a = 0; a < args.length; a++) {
+                if (args[a].equals("--global")) global = true;
+                else if (args[a].equals("-n") && a + 1 < args.length) limit = Integer.parseInt(args[++a]);
+                else if (args[a].equals("--author") && a + 1 < args.length) author = args[++a];
+                else if (args[a].equals("--since") && a + 1 < args.length) since = parseDate(args[++a]);
+                else if (args[a].equals("--") && a + 2 == args.length) path = normalizePath(args[++a]);
+                else throw new IllegalArgumentException(args[a]);
+            }
+        } catch (IllegalArgumentException | java.text.ParseException e) {
+            System.out.println("Usage: log [--global] [-n count] [--author name] [--since yyyy-MM-dd[ HH:mm:ss]] [-- path]");
+            return;
+        }
+        CommitGraph graph = CommitGraph.open();
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 16 * 1024));
+        int i = graph.find(global ? latestCommit : HEAD);
+        for (int printed = 0; i >= 0 && printed < limit; i = global ? graph.globalParent(i) : graph.parent(i)) {
+            //Commits are walked newest first, so everything after an older commit is older too
+            if (graph.timestamp(i) < since) break;
+            if (path != null && !graph.mayChange(i, path)) continue;
+            Commit h = getCommit(graph.hashAt(i));
+            if (h == null) break;
+            if (author != null && !h.getCommitAuthor().contains(author)) continue;
+            try {
+                if (path != null && !CommitGraph.changedPaths(h).contains(path)) continue;
+            } catch (IOException e) {
+                System.out.println(e);
+                continue;
+            }
+            out.println("commit " + h.getCommitHash());
+            if (graph.mergeParent(i) >= 0) {
+                out.println("Merge: " + graph.hashAt(graph.parent(i)) + " " + graph.hashAt(graph.mergeParent(i)));
             }
+            out.println("Author: " + h.getCommitAuthor());
+            out.println("Date: " + h.getCommitDate());
+            out.println("Branch: " + h.getCommitBranch());
+            out.printf("\n\n\t%s\n\n\n", h.getCommitMessage());
+            out.flush();
+            printed++;
         }
+        out.flush();
+    }
 
+    private static long parseDate(String date) throws java.text.ParseException {
+        String pattern = date.length() > 10 ? "yyyy-MM-dd HH:mm:ss" : "yyyy-MM-dd";
+        return new java.text.SimpleDateFormat(pattern).parse(date).getTime();
+    }
+
+    /* Prints every line of the file at HEAD with the commit that last changed it.*/
+    public void blame(String name) {
+        String path = normalizePath(name);
+        CommitGraph graph = CommitGraph.open();
+        int head = graph.find(HEAD);
+        try {
+            String[] origins = head < 0 ? null : new Blame(graph, objects).blame(head, path);
+            if (origins == null) {
+                System.out.println("File " + name + " does not exist at HEAD");
+                return;
+            }
+            Lines lines = Lines.of(objects.read(getCommit(HEAD).getTree().find(path)), new Lines.Interner());
+            int width = Integer.toString(lines.size()).length();
+            PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024));
+            for (int i = 0; i < lines.size(); i++) {
+                Commit c = getCommit(origins[i]);
+                out.printf("%.8s (%s %s %" + width + "d) ", origins[i], c.getCommitAuthor(), c.getCommitDate(), i + 1);
+                if (!lines.write(out, i, i + 1)) out.println();
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* A path as the commits store it: relative to the repository root, separated by '/'.*/
+    private static String normalizePath(String path) {
+        path = path.replace(File.separatorChar, '/');
+        while (path.startsWith("./")) path = path.substring(2);
+        while (path.endsWith("/") && path.length() > 1) path = path.substring(0, path.length() - 1);
+        return path;
     }
 
     public void checkout(String arg, String commitID, String branchName, String fileName) {
         Commit c;
-        File path;
         if (arg.equals("-b")) { //checkout -b branchName
             if (!branchNameToBranchHeadCommit.containsKey(branchName)) {
                 branchNameToBranchHeadCommit.put(branchName, HEAD);
                 stagedFiles = new HashMap<>();
                 removedFiles = new HashSet<>();
                 currentBranch = branchName;
-                mergeSplitPoints.put(branchName, HEAD);
+                mergeHead = null;
                 System.out.println("Switched to a new branch " + branchName);
             } else {
                 System.out.println("The branch at " + branchName + " already exists.");
             }
         } else if (!fileName.equals("") && branchName.equals("")) {
-            File f;
             if (arg.equals("-c")) { //checkout -c commitID --fileName
-                f = new File(".javavc/commits/" + commitID);
-                if (!f.exists()) {
+                commitID = ObjectStore.open().resolve(commitID);
+                if (commitID == null) return;
+                if (!Commit.exists(commitID)) {
                     System.out.println("Commit at " + commitID + " does not exist");
                     return;
                 }
                 c = Commit.deserializeCommit(commitID);
 
-            } else { c = HEAD; } //checkout --fileName
+            } else { c = getCommit(HEAD); } //checkout --fileName
             try {
-                found : {
-                    for (String fName : c.getStagedFiles().keySet()) {
-                        if (fName.equals(fileName)) {
-                            path = new File (".javavc/blobs/" + c.getStagedFiles().get(fName) + "/" + fName);
-                            break found;
-                        }
-                    }
+                String blobHash = c.getTree().find(path(new File(fileName)));
+                if (blobHash == null) {
                     System.out.println("File " + fileName + " does not exist at commit " + commitID);
                     return;
                 }
-                Files.copy(path.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Events.WriteFile event = Events.writeFile();
+                long start = Stats.start();
+                objects.copyTo(blobHash, new File(fileName));
+                Stats.time(Stats.Phase.CHECKOUT, start);
+                if (event != null) {
+                    event.path = path(new File(fileName));
+                    event.written = true;
+                    event.commit();
+                }
             } catch (Exception e) {
                 System.out.println(e);
             }
         } else { //checkout branchName
-            for (File f: cwd.listFiles()) {
-                if (isAllowedFile(f.getName())) {
-                    f.delete();
-                }
+            if (!branchNameToBranchHeadCommit.containsKey(branchName)) {
+                System.out.println("Branch " + branchName + " does not exist.");
+                return;
             }
-            c = branchNameToBranchHeadCommit.get(branchName);
-            for (String fileHash: c.getStagedFiles().values()) {//TO FIX
-                File dir = new File(".javavc/blobs/" + fileHash);
-                for (File f: dir.listFiles()) {
-                    try {
-                        Files.copy(f.toPath(), new File(f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    } catch (Exception e) {
-                        System.out.println(e);
-                    }
-                }
+            c = getCommit(branchNameToBranchHeadCommit.get(branchName));
+            try {
+                updateWorkingTree(c.getTree());
+            } catch (IOException e) {
+                System.out.println(e);
+                return;
             }
             currentBranch = branchName;
             HEAD = branchNameToBranchHeadCommit.get(currentBranch);
             stagedFiles = new HashMap<>();
             removedFiles = new HashSet<>();
+            mergeHead = null;
             System.out.println("Switched to branch " + branchName);
         }
     }
 
+    /* Files the working directory is expected to hold: HEAD's files and whatever was staged since.*/
+    private HashMap<String, String> checkedOutFiles() {
+        HashMap<String, String> files = new HashMap<>();
+        Commit head = getCommit(HEAD);
+        if (head != null) files.putAll(head.getStagedFiles());
+        files.putAll(stagedFiles);
+        return files;
+    }
+
+    /* Moves the working directory to the target tree. Only the paths that differ from what is
+    * checked out are looked at: directories with the same tree hash are skipped as a whole.*/
+    private void updateWorkingTree(Tree target) throws IOException {
+        Commit head = getCommit(HEAD);
+        Tree checkedOut = stagedFiles.isEmpty() ? (head == null ? null : head.getTree()) : Tree.of(checkedOutFiles());
+        HashMap<String, String> from = new HashMap<>();
+        HashMap<String, String> to = new HashMap<>();
+        Tree.diff(checkedOut, target, "", (path, oldHash, newHash) -> {
+            if (oldHash != null) from.put(path, oldHash);
+            if (newHash != null) to.put(path, newHash);
+        });
+        updateWorkingTree(from, to);
+    }
+
+    /* Writes, deletes or keeps only the files that differ between the two snapshots. With a sparse
+    * checkout, paths outside its patterns are neither read nor written: those not in the working
+    * directory are recorded in the index as skip-worktree with their new blob, and any that are
+    * there, such as files kept because they had changes, are left as they are.*/
+    private void updateWorkingTree(HashMap<String, String> from, HashMap<String, String> to) {
+        Sparse sparse = Sparse.load();
+        if (sparse != null) {
+            from = new HashMap<>(from);
+            to = new HashMap<>(to);
+            HashSet<String> paths = new HashSet<>(from.keySet());
+            paths.addAll(to.keySet());
+            for (String path: paths) {
+                if (sparse.includes(path)) continue;
+                from.remove(path);
+                String hash = to.remove(path);
+                if (new File(path).exists()) continue;
+                if (hash == null) index.remove(path);
+                else index.skipWorktree(path, hash);
+            }
+        }
+        writeWorkingTree(from, to);
+    }
+
+    private void writeWorkingTree(Map<String, String> from, Map<String, String> to) {
+        Checkout checkout = new Checkout(objects, index);
+        checkout.apply(from, to);
+        System.out.printf("%d files written, %d deleted, %d unchanged\n", checkout.getWritten(), checkout.getDeleted(), checkout.getSkipped());
+    }
+
+    /* sparse-checkout set <pattern>...: checks out only the tracked paths the patterns include (see
+    * Sparse). Files leaving the checkout are deleted unless they have changes, which are kept.
+    * sparse-checkout add <pattern>...: adds patterns to those set.
+    * sparse-checkout list: prints the patterns.
+    * sparse-checkout disable: checks out every path again.*/
+    private void sparseCheckout(String[] args) {
+        Sparse current = Sparse.load();
+        Sparse next;
+        List<String> given = Arrays.asList(args).subList(1, args.length);
+        if (args.length >= 2 && args[0].equals("set")) {
+            next = new Sparse(new ArrayList<>(given));
+        } else if (args.length >= 2 && args[0].equals("add")) {
+            if (current == null) {
+                System.out.println("Sparse checkout is not enabled, use sparse-checkout set");
+                return;
+            }
+            ArrayList<String> patterns = new ArrayList<>(current.getPatterns());
+            patterns.addAll(given);
+            next = new Sparse(patterns);
+        } else if (args.length == 1 && args[0].equals("list")) {
+            if (current == null) System.out.println("Sparse checkout is not enabled");
+            else for (String p: current.getPatterns()) System.out.println(p);
+            return;
+        } else if (args.length == 1 && args[0].equals("disable")) {
+            next = null;
+        } else {
+            System.out.println("Usage: sparse-checkout set|add <pattern>... | list | disable");
+            return;
+        }
+        HashMap<String, String> tracked = trackedFiles();
+        HashMap<String, String> from = new HashMap<>();
+        HashMap<String, String> to = new HashMap<>();
+        HashMap<String, String> skipped = new HashMap<>();
+        for (Map.Entry<String, String> e: tracked.entrySet()) {
+            String path = e.getKey();
+            File f = new File(path);
+            if (next == null || next.includes(path)) {
+                if (!f.exists()) to.put(path, e.getValue());
+                else if (index.isSkipWorktree(path)) index.remove(path); //Created by hand meanwhile: compared from now on
+            } else if (!f.exists()) {
+                skipped.put(path, e.getValue());
+            } else if (e.getValue().equals(workingFileHash(f))) {
+                from.put(path, e.getValue());
+                skipped.put(path, e.getValue());
+            } else {
+                System.out.println("Not removing " + path + ": it has changes");
+            }
+        }
+        for (String path: new ArrayList<>(index.paths())) {
+            //Entries of files no longer tracked
+            if (index.isSkipWorktree(path) && !tracked.containsKey(path)) index.remove(path);
+        }
+        writeWorkingTree(from, to);
+        for (Map.Entry<String, String> e: skipped.entrySet()) index.skipWorktree(e.getKey(), e.getValue());
+        try {
+            if (next == null) Sparse.delete();
+            else next.save();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
     private void removeBranch(String branchName) {
         if (branchName.equals(currentBranch)) {
             System.out.println("Cannot delete current working branch.");
@@ -259,12 +842,12 @@ public class JavaVC implements Serializable {
             return;
         }
         branchNameToBranchHeadCommit.remove(branchName);
-        mergeSplitPoints.remove(branchName);
     }
 
     private void reset(String commitHash) {
-        File commitLoc = new File(".javavc/commits/" + commitHash);
-        if (!commitLoc.exists()) {
+        commitHash = ObjectStore.open().resolve(commitHash);
+        if (commitHash == null) return;
+        if (!Commit.exists(commitHash)) {
             System.out.println("The commit at " + commitHash + " does not exist.");
             return;
         }
@@ -273,187 +856,528 @@ public class JavaVC implements Serializable {
             System.out.println("Cannot reset to this commit. Branch " + c.getCommitBranch() + " does not exist. Aborting.");
             return;
         }
-        while (!latestCommit.getCommitHash().equals(commitHash)) {
-            //When the previous commit's branch and the current branch is different, it is the end of a branch: delete it and its split point
-            if (latestCommit.getPrevCommit() != null && !latestCommit.getPrevCommit().getCommitBranch().equals(latestCommit.getCommitBranch())) {
-                branchNameToBranchHeadCommit.remove(latestCommit.getCommitBranch());
-                mergeSplitPoints.remove(latestCommit.getCommitBranch());
+        HashMap<String, String> checkedOut = checkedOutFiles();
+        Commit latest = getCommit(latestCommit);
+        while (!latest.getCommitHash().equals(commitHash)) {
+            //When the previous commit's branch and the current branch is different, it is the end of a branch: delete it
+            if (latest.getPrevCommit() != null && !latest.getPrevCommit().getCommitBranch().equals(latest.getCommitBranch())) {
+                branchNameToBranchHeadCommit.remove(latest.getCommitBranch());
             } else {
-                branchNameToBranchHeadCommit.put(latestCommit.getCommitBranch(), latestCommit.getPrevCommit());
+                branchNameToBranchHeadCommit.put(latest.getCommitBranch(), latest.getPrevCommitHash());
             }
-            latestCommit = latestCommit.getGlobalPrevCommit();
+            latest = latest.getGlobalPrevCommit();
         }
-        currentBranch = latestCommit.getCommitBranch();
-        stagedFiles = latestCommit.getStagedFiles();
-        removedFiles = latestCommit.getRemovedFiles();
+        latestCommit = latest.getCommitHash();
+        currentBranch = latest.getCommitBranch();
+        stagedFiles = new HashMap<>(latest.getStagedFiles());
+        removedFiles = new HashSet<>(latest.getRemovedFiles());
+        mergeHead = null;
         HEAD = latestCommit;
-        for (File f: cwd.listFiles()) {
-            if (isAllowedFile(f.getName())) {
-                f.delete();
+        updateWorkingTree(checkedOut, stagedFiles);
+        System.out.println("Successfully reverted to commit " + commitHash);
+    }
+
+    /* Removes the objects that can not be reached from the branches, the remote-tracking refs, HEAD,
+    * the latest commit, the commit being merged, the staging area or the index. gc --now also removes objects stored
+    * within the grace period (gc.grace seconds, two weeks by default).*/
+    private void gc(boolean now) {
+        ArrayList<String> commits = new ArrayList<>(branchNameToBranchHeadCommit.values());
+        commits.addAll(Refs.readRemotes().values());
+        commits.add(HEAD);
+        commits.add(latestCommit);
+        commits.add(mergeHead);
+        ArrayList<String> blobs = new ArrayList<>(stagedFiles.values());
+        for (String path: index.paths()) blobs.add(index.getHash(path));
+        long grace = now ? 0 : Config.getInt("gc.grace", 14 * 24 * 3600) * 1000L;
+        try {
+            GarbageCollector collector = new GarbageCollector(objects);
+            collector.markReachable(commits, blobs);
+            collector.sweep(System.currentTimeMillis() - grace);
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        //Commits that were removed must not stay in the graph, or in cached blame results
+        CommitGraph.open().rebuild();
+        Blame.clearCache();
+    }
+
+    /* Makes the working directory a copy of the repository at source, with its branches, current
+    * branch and files. On the same file system the object files are hard linked, otherwise the
+    * objects are fetched. The source is remembered as origin.*/
+    private void cloneFrom(String source) {
+        if (new File(".javavc").exists()) {
+            System.out.println("A javavc folder already exists inside this repository");
+            return;
+        }
+        if (!new File(source, ".javavc").isDirectory()) {
+            System.out.println(source + " is not a javavc repository");
+            return;
+        }
+        new File(".javavc").mkdir();
+        LegacyMigration.writeObjectFormat();
+        try (Transport remote = Transport.connect(source, "upload-pack")) {
+            //Only once connected: the source has converted its object names by then
+            if (Transport.linkObjects(new File(source, ".javavc/objects"), new File(".javavc/objects"))) {
+                System.out.println("Linked the objects of " + source);
             }
+            ArrayList<String> wants = new ArrayList<>();
+            for (String head: remote.remoteBranches.values()) {
+                if (head != null && !Commit.exists(head) && !wants.contains(head)) wants.add(head);
+            }
+            if (remote.remoteLatest != null && !Commit.exists(remote.remoteLatest) && !wants.contains(remote.remoteLatest)) {
+                wants.add(remote.remoteLatest);
+            }
+            int received = remote.fetch(wants, new ArrayList<>());
+            if (received > 0) System.out.println("Received " + received + " objects");
+            Config.set("remote.origin", new File(source).getCanonicalPath());
+            branchNameToBranchHeadCommit = new HashMap<>();
+            for (Map.Entry<String, String> b: remote.remoteBranches.entrySet()) {
+                if (Transport.validBranchName(b.getKey())) branchNameToBranchHeadCommit.put(b.getKey(), b.getValue());
+            }
+            Refs.sync(Refs.REMOTES + "/origin", new HashMap<>(), branchNameToBranchHeadCommit);
+            currentBranch = branchNameToBranchHeadCommit.containsKey(remote.remoteBranch) ? remote.remoteBranch : "master";
+            branchNameToBranchHeadCommit.putIfAbsent(currentBranch, null);
+            HEAD = branchNameToBranchHeadCommit.get(currentBranch);
+            latestCommit = remote.remoteLatest != null ? remote.remoteLatest : HEAD;
+            serializeStatus();
+            CommitGraph.open().rebuild();
+            if (HEAD != null) updateWorkingTree(new HashMap<>(), getCommit(HEAD).getStagedFiles());
+            System.out.println("Cloned " + source + ", on branch " + currentBranch);
+        } catch (IOException e) {
+            System.out.println(e);
         }
-        for (String fileHash: stagedFiles.values()) {
-            File dir = new File(".javavc/blobs/" + fileHash);
-            for (File f: dir.listFiles()) {
-                try {
-                    Files.copy(f.toPath(), new File(f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
-                } catch (Exception e) {
-                    System.out.println(e);
+    }
+
+    /* Path of the repository a fetch or push goes to: the one given, or origin.*/
+    private static String remotePath(String remote) {
+        String path = remote != null ? remote : Config.get("remote.origin", null);
+        if (path == null) System.out.println("No repository given, and this repository was not cloned");
+        return path;
+    }
+
+    /* Fetches the branches of another repository into refs/remotes/<name>, where they can be
+    * merged (merge origin/master) or logged. Only the objects missing here are transferred.*/
+    private void fetch(String remote) {
+        String path = remotePath(remote);
+        if (path == null) return;
+        try (Transport t = Transport.connect(path, "upload-pack")) {
+            ArrayList<String> wants = new ArrayList<>();
+            for (String head: t.remoteBranches.values()) {
+                if (head != null && !Commit.exists(head) && !wants.contains(head)) wants.add(head);
+            }
+            ArrayList<String> heads = new ArrayList<>(branchNameToBranchHeadCommit.values());
+            heads.addAll(Refs.readRemotes().values());
+            heads.add(HEAD);
+            heads.add(latestCommit);
+            heads.removeIf(h -> h == null);
+            int received = t.fetch(wants, heads);
+            String name = Transport.remoteName(path);
+            String namespace = Refs.REMOTES + "/" + name;
+            HashMap<String, String> old = Refs.readAll(namespace);
+            HashMap<String, String> fetched = new HashMap<>();
+            for (Map.Entry<String, String> b: t.remoteBranches.entrySet()) {
+                if (!Transport.validBranchName(b.getKey())) continue;
+                fetched.put(b.getKey(), b.getValue());
+                if (!Objects.equals(old.get(b.getKey()), b.getValue())) {
+                    System.out.println(name + "/" + b.getKey() + ": " + (old.get(b.getKey()) == null ? "new" : old.get(b.getKey())) + " -> " + b.getValue());
                 }
             }
+            Refs.sync(namespace, old, fetched);
+            System.out.println("Received " + received + " objects from " + path);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* Sends a branch to another repository, which moves its branch of that name to ours if that
+    * only adds commits to it.*/
+    private void push(String remote, String branch) {
+        String path = remotePath(remote);
+        if (path == null) return;
+        if (branch == null) branch = currentBranch;
+        String head = branchNameToBranchHeadCommit.get(branch);
+        if (head == null) {
+            System.out.println("Branch " + branch + " does not exist or has no commits.");
+            return;
+        }
+        try (Transport t = Transport.connect(path, "receive-pack")) {
+            String expected = t.remoteBranches.get(branch);
+            if (head.equals(expected)) {
+                System.out.println("Everything up to date.");
+                return;
+            }
+            if (expected != null && !CommitGraph.open().isAncestor(CommitGraph.open().find(expected), CommitGraph.open().find(head))) {
+                System.out.println("Push rejected: " + branch + " has commits that are not here, fetch and merge first");
+                return;
+            }
+            String refused = t.push(branch, expected, head);
+            if (refused != null) {
+                System.out.println("Push rejected: " + refused);
+                return;
+            }
+            Refs.write(Refs.REMOTES + "/" + Transport.remoteName(path), branch, head);
+            System.out.println("Pushed " + branch + " to " + path);
+        } catch (IOException e) {
+            System.out.println(e);
         }
-        System.out.println("Successfully reverted to commit " + commitHash);
     }
 
     private void merge(String subBranch) {
-        if (!branchNameToBranchHeadCommit.containsKey(subBranch)) {
+        //A branch, or a remote-tracking ref such as origin/master
+        String subBranchHead = branchNameToBranchHeadCommit.containsKey(subBranch) ? branchNameToBranchHeadCommit.get(subBranch)
+                : Refs.readRemotes().get(subBranch);
+        if (!branchNameToBranchHeadCommit.containsKey(subBranch) && subBranchHead == null) {
             System.out.println("Branch not found. Aborting.");
+            return;
         }
-        String earliestAncestor;
-        found: {
-            earliestAncestor = subBranch;
-            Commit c = mergeSplitPoints.get(earliestAncestor);
-            if (c.getCommitBranch().equals(currentBranch)) break found;
-            while (!c.getCommitBranch().equals(currentBranch)) {
-                earliestAncestor = c.getCommitBranch();
-                c = mergeSplitPoints.get(earliestAncestor);
-                if (c.getCommitBranch().equals(currentBranch)) break found;
-            }
-            System.out.println("Sub branch was not found. Aborting.");
+        //The split point is the lowest common ancestor of the two heads in the commit graph
+        CommitGraph graph = CommitGraph.open();
+        int head = graph.find(HEAD);
+        int subHead = graph.find(subBranchHead);
+        if (graph.isAncestor(subHead, head)) {
+            System.out.println("Already up to date.");
             return;
         }
-        Commit ancestorCommit = mergeSplitPoints.get(earliestAncestor);
-        HashMap<String, String> subBranchFiles = branchNameToBranchHeadCommit.get(subBranch).getStagedFiles();
-        HashMap<String, String> splitPointFiles = ancestorCommit.getStagedFiles();
-        HashMap<String, String> currentFiles = HEAD.getStagedFiles();
-        HashSet<String> conflictingFiles = new HashSet<>();
-        HashMap<String, String> allFiles = new HashMap<>();
-        //Get the difference of the two staging areas
-        //If file only exists in one branch, it is not necessary to check the split point, because no files would be in conflict
-        for (String s: subBranchFiles.keySet()) {
-            if (!currentFiles.containsKey(s)) allFiles.put(s, subBranchFiles.get(s));
-        }
-        for (String s: currentFiles.keySet()) {
-            if (!subBranchFiles.containsKey(s)) allFiles.put(s, currentFiles.get(s));
-        }
-        //Get files present in both branches and determine conflicting and non-conflicting files
-        for (String childFile: subBranchFiles.keySet()) {
-            if (subBranchFiles.get(childFile).equals(currentFiles.get(childFile))) {
-                //Files in the two branches are identical: No need to check whether the file is in the split point
-                allFiles.put(childFile, subBranchFiles.get(childFile));
+        int splitPoint = graph.mergeBase(head, subHead);
+        if (splitPoint < 0) {
+            System.out.println("Branches have no common ancestor. Aborting.");
+            return;
+        }
+        Commit ancestorCommit = getCommit(graph.hashAt(splitPoint));
+        Commit headCommit = getCommit(HEAD);
+        //Only paths changed on either side since the split point need a decision; unchanged
+        //directories are skipped by comparing tree hashes
+        HashMap<String, String[]> ourChanges = new HashMap<>();
+        TreeMap<String, String[]> theirChanges = new TreeMap<>();
+        try {
+            Tree splitPointTree = ancestorCommit.getTree();
+            Tree.diff(splitPointTree, headCommit.getTree(), "", (path, oldHash, newHash) -> ourChanges.put(path, new String[]{oldHash, newHash}));
+            Tree.diff(splitPointTree, getCommit(subBranchHead).getTree(), "", (path, oldHash, newHash) -> theirChanges.put(path, new String[]{oldHash, newHash}));
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        HashMap<String, String> currentFiles = headCommit.getStagedFiles();
+        HashMap<String, String> allFiles = new HashMap<>(currentFiles);
+        HashMap<String, String> incoming = new HashMap<>(); //Files taken from the sub branch
+        TreeMap<String, String[]> toMerge = new TreeMap<>(); //Path to the split point's, our and their blob
+        HashSet<String> renamedAway = new HashSet<>(); //Old names of files renamed on the sub branch
+        //A file that went away on one side and reappeared under another name with similar content was renamed
+        HashMap<String, String> ourRenames = Config.get("merge.renames", "true").equals("true") ? mergeRenames(ourChanges) : new HashMap<>();
+        HashMap<String, String> theirRenames = Config.get("merge.renames", "true").equals("true") ? mergeRenames(theirChanges) : new HashMap<>();
+        HashMap<String, String> theirRenamedFrom = new HashMap<>();
+        for (Map.Entry<String, String> e: theirRenames.entrySet()) theirRenamedFrom.put(e.getValue(), e.getKey());
+        //A file missing on one side is kept from the other: a commit only holds the files staged for it,
+        //so a missing file is not a deletion
+        for (String s: theirChanges.keySet()) {
+            String theirs = theirChanges.get(s)[1];
+            String ours = currentFiles.get(s);
+            if (theirs == null || theirs.equals(ours)) continue;
+            String from = theirRenamedFrom.get(s);
+            if (from != null && ours == null && currentFiles.containsKey(from) && !ourRenames.containsKey(from)) {
+                //Renamed on the sub branch: our changes to the old name follow it
+                System.out.println("Renamed " + from + " to " + s);
+                renamedAway.add(from);
+                if (ourChanges.containsKey(from)) toMerge.put(s, new String[]{theirChanges.get(from)[0], currentFiles.get(from), theirs});
+                else incoming.put(s, theirs);
+                continue;
+            }
+            String to = ourRenames.get(s);
+            if (to != null && ours == null && theirChanges.get(s)[0] != null) {
+                //Renamed here and changed on the sub branch: their changes follow the new name
+                toMerge.put(to, new String[]{theirChanges.get(s)[0], currentFiles.get(to), theirs});
+                continue;
+            }
+            if (ours == null || !ourChanges.containsKey(s)) {
+                //Only changed on the sub branch: incorporate the change
+                incoming.put(s, theirs);
             } else {
-                //If sub branch file is identical to the one in the split point, incorporate the change from the
-                //main branch and vice versa
-                if (subBranchFiles.containsKey(childFile) && subBranchFiles.get(childFile).equals(splitPointFiles.get(childFile))) {
-                    allFiles.put(childFile, currentFiles.get(childFile));
-                } else if (currentFiles.containsKey(childFile) && currentFiles.get(childFile).equals(splitPointFiles.get(childFile))) {
-                    allFiles.put(childFile, subBranchFiles.get(childFile));
-                } else if (subBranchFiles.containsKey(childFile) && currentFiles.containsKey(childFile) && !subBranchFiles.get(childFile).equals(splitPointFiles.get(childFile)) &&
-                        !currentFiles.get(childFile).equals(splitPointFiles.get(childFile)) && !subBranchFiles.get(childFile).equals(currentFiles.get(childFile))){
-                    //Files are different, and both are different from the split point.
-                    conflictingFiles.add(childFile);
-                }
+                //Changed differently on both branches
+                toMerge.put(s, new String[]{theirChanges.get(s)[0], ours, theirs});
             }
         }
-        for (File f: cwd.listFiles()) {
-            if (isAllowedFile(f.getName())) {
-                f.delete();
-            }
+        for (String s: ourChanges.keySet()) {
+            String[] change = ourChanges.get(s);
+            if (change[1] == null && change[0] != null && !theirChanges.containsKey(s) && !ourRenames.containsKey(s)) incoming.put(s, change[0]);
         }
-        for (String s: allFiles.keySet()) {
-            File f = new File(".javavc/blobs/" + allFiles.get(s)).listFiles()[0];
-            try {
-                Files.copy(f.toPath(), new File(s).toPath(), StandardCopyOption.REPLACE_EXISTING);
-            } catch (Exception e) {
-                System.out.println(e);
-            }
+        allFiles.putAll(incoming);
+        allFiles.keySet().removeAll(renamedAway);
+        //Conflicting files keep our version until they are merged below
+        HashMap<String, String> checkedOut = checkedOutFiles();
+        HashMap<String, String> from = new HashMap<>();
+        for (String s: incoming.keySet()) {
+            if (checkedOut.containsKey(s)) from.put(s, checkedOut.get(s));
         }
+        for (String s: renamedAway) {
+            if (checkedOut.containsKey(s)) from.put(s, checkedOut.get(s));
+        }
+        updateWorkingTree(from, incoming);
         stagedFiles = new HashMap<>(allFiles);
-        removedFiles = new HashSet<>();
-        for (String s: conflictingFiles) {
-            String masterFilePath = new File(".javavc/blobs/" + currentFiles.get(s)).listFiles()[0].toString();
-            String subFilePath = new File(".javavc/blobs/" + subBranchFiles.get(s)).listFiles()[0].toString();
+        removedFiles = new HashSet<>(renamedAway);
+        mergeHead = subBranchHead;
+        //Files changed on both branches are merged line by line against the split point version
+        for (String s: toMerge.keySet()) {
+            Events.MergeFile event = Events.mergeFile();
+            long start = Stats.start();
+            boolean conflicted = false;
             try {
                 File result = new File(s);
-                FileOutputStream outStream = new FileOutputStream(result);
-                FileInputStream masterFile = new FileInputStream(new File(masterFilePath));
-                FileInputStream subBranchFile = new FileInputStream(new File(subFilePath));
-                outStream.write("<<<<<<<<<<<<<<<HEAD\n".getBytes());
-                int len;
-                byte[] buffer = new byte[1024];
-                while ((len = masterFile.read(buffer)) > 0) {
-                    outStream.write(buffer, 0, len);
+                if (result.getParentFile() != null) result.getParentFile().mkdirs();
+                Lines.Interner interner = new Lines.Interner();
+                String[] blobs = toMerge.get(s);
+                Lines base = Lines.of(blobs[0] == null ? null : objects.read(blobs[0]), interner);
+                Lines ours = Lines.of(objects.read(blobs[1]), interner);
+                Lines theirs = Lines.of(objects.read(blobs[2]), interner);
+                int conflicts;
+                try (OutputStream outStream = new BufferedOutputStream(new FileOutputStream(result))) {
+                    conflicts = Merge3.merge(base, ours, theirs, "HEAD", subBranch, outStream);
                 }
-                outStream.write("\n".getBytes(), 0, 1);
-                outStream.write((">>>>>>>>>>>>>>>" + subBranch + "\n").getBytes());
-                while ((len = subBranchFile.read(buffer)) > 0) {
-                    outStream.write(buffer, 0, len);
+                if (conflicts > 0) {
+                    System.out.println("Conflict in " + s + " (" + conflicts + (conflicts == 1 ? " region)" : " regions)"));
+                } else {
+                    System.out.println("Auto-merged " + s);
                 }
-                outStream.close();
-                masterFile.close();
-                subBranchFile.close();
-                String fileHash = serializeAndWriteFile(result);
+                String fileHash = stageFile(result);
                 stagedFiles.put(s, fileHash);
+                conflicted = conflicts > 0;
             } catch (Exception e) {
-                e.printStackTrace();
+                System.out.println(e);
+                failed = true;
+            } finally {
+                Stats.time(Stats.Phase.MERGE, start);
+                if (event != null) {
+                    event.path = s;
+                    event.conflicts = conflicted;
+                    event.commit();
+                }
             }
         }
-        System.out.println("Merged with branch " + subBranch);
+        System.out.println((failed ? "Could not merge every file from branch " : "Merged with branch ") + subBranch);
     }
 
-    public static String convertToHex(byte[] bytearray, boolean isCommit) {
-        StringBuffer hash = new StringBuffer();
-        for (int i = 0; i < bytearray.length; i++) {
-            //By default, Java's bytes are signed. Mask out all negative bits and
-            //trim digits after 255 by a bitwise AND operation with hexadecimal 255.
-            String hex = Integer.toHexString(bytearray[i] & 0xff);
-            //For hashing commits, make it easily recognizable (from branches and blobs)
-            // by prepending a c to the beginning of the hash.
-            if (isCommit && hex.length() == 1) {
-                hash.append('c');
-            }
-            hash.append(hex);
+    /* The renames among one side's changes since the split point (path to old and new blob), old
+    * path to new. Only renames are looked for: a merge has no use for copies.*/
+    private HashMap<String, String> mergeRenames(Map<String, String[]> changes) {
+        HashMap<String, String> removed = new HashMap<>();
+        HashMap<String, String> added = new HashMap<>();
+        for (Map.Entry<String, String[]> e: changes.entrySet()) {
+            if (e.getValue()[1] == null) removed.put(e.getKey(), e.getValue()[0]);
+            else if (e.getValue()[0] == null) added.put(e.getKey(), e.getValue()[1]);
         }
-        return hash.toString();
+        HashMap<String, String> renames = new HashMap<>();
+        for (Renames.Pair p: detectRenames(removed, added, null, "true")) renames.put(p.from, p.to);
+        return renames;
+    }
+
+    /* Snapshot of the small state files, kept so that saving only rewrites the ones that changed.*/
+    private static class RepositoryState {
+        String head;
+        String latestCommit;
+        String currentBranch;
+        HashMap<String, String> stagedFiles;
+        HashSet<String> removedFiles;
+        HashMap<String, String> branches;
+        String mergeHead;
+    }
+
+    private RepositoryState snapshot() {
+        RepositoryState state = new RepositoryState();
+        state.head = HEAD;
+        state.latestCommit = latestCommit;
+        state.currentBranch = currentBranch;
+        state.stagedFiles = new HashMap<>(stagedFiles);
+        state.removedFiles = new HashSet<>(removedFiles);
+        state.branches = new HashMap<>(branchNameToBranchHeadCommit);
+        state.mergeHead = mergeHead;
+        return state;
     }
 
-    /* Serialize this JavaVC class to preserve its state*/
+    /* Write back the refs, HEAD and staging area. Commits are written once when they are made, so the
+    * cost of saving does not depend on the length of the history.*/
     public void serializeStatus() {
-        File dir = new File(".javavc");
-        if (!dir.exists()) {
-            dir.mkdir();
+        if (!new File(".javavc").exists()) {
+            return;
         }
-        String filePath = dir + "/" + "JAVAVC.ser";
-        try {
-            FileOutputStream file = new FileOutputStream(filePath);
-            ObjectOutputStream serialized = new ObjectOutputStream(file);
-            serialized.writeObject(this);
-            serialized.close();
+        RepositoryState old = loadedState == null ? new RepositoryState() : loadedState;
+        if (old.branches == null) {
+            old.branches = new HashMap<>();
+        }
+        Refs.sync(Refs.HEADS, old.branches, branchNameToBranchHeadCommit);
+        if (!currentBranch.equals(old.currentBranch) || !equal(HEAD, old.head)) {
+            String expected = old.currentBranch == null ? null : (old.currentBranch + "\n" + (old.head == null ? "" : old.head)).trim();
+            Refs.compareAndSet(new File(HEAD_LOCATION), expected, currentBranch + "\n" + (HEAD == null ? "" : HEAD));
+        }
+        if (!equal(latestCommit, old.latestCommit)) {
+            Refs.compareAndSet(new File(LATEST_LOCATION), old.latestCommit, latestCommit);
+        }
+        if (!equal(mergeHead, old.mergeHead)) {
+            if (mergeHead == null) Refs.compareAndDelete(new File(MERGE_HEAD_LOCATION), old.mergeHead);
+            else Refs.compareAndSet(new File(MERGE_HEAD_LOCATION), old.mergeHead, mergeHead);
+        }
+        if (!stagedFiles.equals(old.stagedFiles) || !removedFiles.equals(old.removedFiles)) {
+            writeStage();
+        }
+        loadedState = snapshot();
+    }
 
-        } catch (Exception e) {
+    private void writeStage() {
+        File tmp = new File(STAGE_LOCATION + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(stagedFiles.size());
+            for (String fileName: stagedFiles.keySet()) {
+                out.writeUTF(fileName);
+                out.writeUTF(stagedFiles.get(fileName));
+            }
+            out.writeInt(removedFiles.size());
+            for (String fileName: removedFiles) {
+                out.writeUTF(fileName);
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        try {
+            Durability.replace(tmp, new File(STAGE_LOCATION));
+        } catch (IOException e) {
             System.out.println(e);
         }
     }
 
-    //Deserialize this class every time it is used
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /* Writes the complete state of a repository converted by LegacyMigration.*/
+    static void writeMigratedState(String currentBranch, String head, String latestCommit, HashMap<String, String> stagedFiles,
+                                   HashSet<String> removedFiles, HashMap<String, String> branches) {
+        JavaVC vc = new JavaVC();
+        vc.currentBranch = currentBranch;
+        vc.HEAD = head;
+        vc.latestCommit = latestCommit;
+        vc.stagedFiles = stagedFiles;
+        vc.removedFiles = removedFiles;
+        vc.branchNameToBranchHeadCommit = branches;
+        vc.serializeStatus();
+    }
+
+    /* Renames the objects HEAD, the branches, the remote-tracking refs and the stage point to, for
+    * LegacyMigration.migrateObjectIds. Names not in ids are kept.*/
+    static void renameObjects(Map<String, String> ids) {
+        JavaVC vc = deserialize();
+        vc.HEAD = ids.getOrDefault(vc.HEAD, vc.HEAD);
+        vc.latestCommit = ids.getOrDefault(vc.latestCommit, vc.latestCommit);
+        vc.mergeHead = ids.getOrDefault(vc.mergeHead, vc.mergeHead);
+        vc.branchNameToBranchHeadCommit.replaceAll((b, h) -> ids.getOrDefault(h, h));
+        vc.stagedFiles.replaceAll((f, h) -> ids.getOrDefault(h, h));
+        vc.serializeStatus();
+        for (Map.Entry<String, String> ref: Refs.readRemotes().entrySet()) {
+            String renamed = ids.get(ref.getValue());
+            if (renamed != null) Refs.write(Refs.REMOTES, ref.getKey(), renamed);
+        }
+    }
+
+    //Load the refs and staging area every time it is used
     public static JavaVC deserialize() {
-        String pathToSerial = ".javavc/JAVAVC.ser";
+        JavaVC vc = new JavaVC();
         try {
-            FileInputStream file = new FileInputStream(pathToSerial);
-            ObjectInputStream in = new ObjectInputStream(file);
-            JavaVC deserialized = (JavaVC)(in.readObject());
-            file.close();
-            in.close();
-            return deserialized;
-        } catch (Exception e) {
+            String[] head = new String(Files.readAllBytes(new File(HEAD_LOCATION).toPath()), "UTF-8").split("\n");
+            vc.currentBranch = head[0].trim();
+            vc.HEAD = head.length > 1 && !head[1].trim().equals("") ? head[1].trim() : null;
+            vc.latestCommit = Refs.readFile(new File(LATEST_LOCATION));
+            vc.branchNameToBranchHeadCommit = Refs.readAll(Refs.HEADS);
+            vc.mergeHead = Refs.readFile(new File(MERGE_HEAD_LOCATION));
+            File stage = new File(STAGE_LOCATION);
+            if (stage.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stage)))) {
+                    int stagedCount = in.readInt();
+                    for (int i = 0; i < stagedCount; i++) {
+                        vc.stagedFiles.put(in.readUTF(), in.readUTF());
+                    }
+                    int removedCount = in.readInt();
+                    for (int i = 0; i < removedCount; i++) {
+                        vc.removedFiles.add(in.readUTF());
+                    }
+                }
+            }
+        } catch (IOException e) {
             System.out.println(e);
-            return null;
         }
+        vc.loadedState = vc.snapshot();
+        return vc;
     }
 
     public static void main(String[] args) {
-        File file = new File(".javavc/JAVAVC.ser");
+        int status = run(args, null);
+        if (status != 0) System.exit(status);
+    }
+
+    /* Runs one command and returns its exit status. The server passes the index it keeps loaded
+    * between commands, null loads it. With --stats, the time spent in each phase and what was read
+    * and written are printed to standard error at the end.*/
+    static int run(String[] args, Index index) {
+        long started = Stats.start();
+        Stats.reset();
+        ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
+        boolean stats = false;
+        for (int i = argList.size() - 1; i >= 0; i--) {
+            //Not when it is a commit message
+            if (argList.get(i).equals("--stats") && (i == 0 || !argList.get(i - 1).equals("-m"))) {
+                argList.remove(i);
+                stats = true;
+            }
+        }
+        args = argList.toArray(new String[0]);
+        if (args.length == 0) {
+            System.out.println("No command given");
+            return 1;
+        }
+        if (args[0].equals("upload-pack") || args[0].equals("receive-pack")) {
+            //Standard output carries the protocol: messages, such as those of a conversion below, go to standard error
+            System.setOut(System.err);
+        }
+        boolean readOnly = READ_ONLY_COMMANDS.contains(args[0]);
+        //Converting a repository written by an earlier version writes, whatever the command
+        RepositoryLock lock = readOnly && !LegacyMigration.isNeeded() ? null : RepositoryLock.acquire();
+        int status;
+        try {
+            status = run(args, index, !readOnly);
+        } finally {
+            try {
+                ObjectStore.flushStaged(); //Objects of a command that ended without writing a ref
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            if (lock != null) lock.close();
+        }
+        if (stats) {
+            Stats.print(System.err, System.nanoTime() - started);
+        } else if (Config.get("cache.stats", "false").equals("true")) {
+            System.err.println(ObjectStore.open().getCache());
+        }
+        return status;
+    }
+
+    /* Runs the command with the repository lock held if it writes. Only a command that writes saves
+    * the refs and stage; the index and monitor state are saved whenever the lock is held or free.*/
+    private static int run(String[] args, Index index, boolean writes) {
+        long start = Stats.start();
+        if (new File(LegacyMigration.LEGACY_STATE_LOCATION).exists()) {
+            LegacyMigration.migrate();
+        }
+        if (new File(LegacyMigration.LEGACY_BLOB_LOCATION).exists() || new File(LegacyMigration.LEGACY_COMMIT_LOCATION).exists()) {
+            LegacyMigration.migrateObjects();
+        }
+        if (new File(LegacyMigration.LEGACY_SPLIT_POINTS_LOCATION).exists()) {
+            LegacyMigration.removeSplitPoints();
+        }
+        if (new File(".javavc").isDirectory() && !new File(LegacyMigration.OBJECT_FORMAT_LOCATION).exists()) {
+            LegacyMigration.migrateObjectIds();
+        }
+        File file = new File(HEAD_LOCATION);
         JavaVC vc = file.exists() ? deserialize() : new JavaVC();
+        vc.index = index != null ? index : Index.load();
+        Stats.time(Stats.Phase.LOAD, start);
         switch (args[0]) {
             case "init":
                 vc.init();
@@ -484,10 +1408,11 @@ public class JavaVC implements Serializable {
                 if (args.length < 2) System.out.println("reset requires one argument commitHash");
                 vc.reset(args[1]);
                 break;
+            case "diff":
+                vc.diff(Arrays.copyOfRange(args, 1, args.length));
+                break;
             case "log":
-                if (args.length == 1) vc.log("");
-                else if (args.length == 2 && args[1].equals("--global")) vc.log("--global");
-                else System.out.println("Invalid arguments supplied to log");
+                vc.log(Arrays.copyOfRange(args, 1, args.length));
                 break;
             /*Usage:
             * checkout --fileName
@@ -508,10 +1433,68 @@ public class JavaVC implements Serializable {
                     vc.checkout(args[1], args[2], "", args[3].substring(2));
                 }
                 break;
+            case "sparse-checkout":
+                vc.sparseCheckout(Arrays.copyOfRange(args, 1, args.length));
+                break;
             case "branch":
                 if (args.length != 3) System.out.println("branch takes two arguments: -d branchName");
                 else vc.removeBranch(args[2]);
                 break;
+            case "repack":
+                try {
+                    ObjectStore.open().repack();
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+                break;
+            case "blame":
+                if (args.length == 2) vc.blame(args[1]);
+                else System.out.println("blame requires one argument filename");
+                break;
+            /*Usage:
+            * clone path
+            * fetch [path]
+            * push [path [branch]]*/
+            case "clone":
+                if (args.length == 2) vc.cloneFrom(args[1]);
+                else System.out.println("clone requires one argument path");
+                break;
+            case "fetch":
+                if (args.length <= 2) vc.fetch(args.length == 2 ? args[1] : null);
+                else System.out.println("Invalid arguments supplied to fetch");
+                break;
+            case "push":
+                if (args.length <= 3) vc.push(args.length >= 2 ? args[1] : null, args.length == 3 ? args[2] : null);
+                else System.out.println("Invalid arguments supplied to push");
+                break;
+            //Run by clone, fetch and push in the other repository
+            case "upload-pack":
+                Transport.uploadPack(vc.currentBranch, vc.latestCommit, vc.branchNameToBranchHeadCommit);
+                break;
+            case "receive-pack":
+                Transport.receivePack(vc.currentBranch, vc.latestCommit, vc.branchNameToBranchHeadCommit);
+                break;
+            case "gc":
+                if (args.length == 1) vc.gc(false);
+                else if (args.length == 2 && args[1].equals("--now")) vc.gc(true);
+                else System.out.println("Invalid arguments supplied to gc");
+                break;
+            /*Usage:
+            * monitor
+            * monitor --stop*/
+            case "monitor":
+                if (args.length == 1) Monitor.run();
+                else if (args.length == 2 && args[1].equals("--stop")) Monitor.stop();
+                else System.out.println("Invalid arguments supplied to monitor");
+                break;
+            /*Usage:
+            * server
+            * server --stop*/
+            case "server":
+                if (args.length == 1) Server.run();
+                else if (args.length == 2 && args[1].equals("--stop")) Server.stop();
+                else System.out.println("Invalid arguments supplied to server");
+                break;
             case "merge":
                 if (args.length < 2) System.out.println("merge requires one argument branch");
                 else if (args.length == 2) {
@@ -519,6 +1502,16 @@ public class JavaVC implements Serializable {
                 }
                 break;
         }
-        vc.serializeStatus();
+        start = Stats.start();
+        if (writes) vc.serializeStatus();
+        //What a read-only command learned about the working tree is kept unless a writer is busy
+        RepositoryLock cacheLock = RepositoryLock.tryAcquire();
+        if (RepositoryLock.isHeld()) {
+            vc.index.save();
+            if (vc.monitor != null) vc.monitor.save();
+        }
+        if (cacheLock != null) cacheLock.close();
+        Stats.time(Stats.Phase.SAVE, start);
+        return vc.failed ? 1 : 0;
     }
 }
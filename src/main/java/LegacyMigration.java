@@ -0,0 +1,328 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/* One-shot conversion of repositories written by earlier versions, which kept the whole JavaVC
+* object in .javavc/JAVAVC.ser and wrote every commit with Java serialization (including the
+* full chain of its ancestors). The legacy classes below mirror the fields of those old classes
+* so the existing files can still be read after JavaVC and Commit changed shape.*/
+public class LegacyMigration {
+    public static final String LEGACY_STATE_LOCATION = ".javavc/JAVAVC.ser";
+    public static final String LEGACY_COMMIT_LOCATION = ".javavc/commits";
+    public static final String LEGACY_BLOB_LOCATION = ".javavc/blobs";
+    public static final String LEGACY_SPLIT_POINTS_LOCATION = ".javavc/refs/split";
+    public static final String OBJECT_FORMAT_LOCATION = ".javavc/object-format"; //Written once object names are full SHA-1 names
+
+    static class LegacyCommit implements Serializable {
+        private static final long serialVersionUID = 8474892334572341244L;
+        private Date date;
+        private SimpleDateFormat format;
+        private String formattedDate;
+        private String commitMessage;
+        private LegacyCommit prevCommit;
+        private String author;
+        private LegacyCommit globalPrevCommit;
+        private String branch;
+        private HashMap<String, String> stagedFiles;
+        private HashSet<String> removedFiles;
+        private String hash;
+    }
+
+    static class LegacyJavaVC implements Serializable {
+        private static final long serialVersionUID = 3945195870018540923L;
+        private LegacyCommit HEAD;
+        private LegacyCommit latestCommit;
+        private String currentBranch;
+        private HashMap<String, String> stagedFiles;
+        private HashSet<String> removedFiles;
+        private HashMap<String, LegacyCommit> branchNameToBranchHeadCommit;
+        private HashSet<String> ALLOWED_SUFFIXES;
+        private HashMap<String, LegacyCommit> mergeSplitPoints;
+    }
+
+    /* Reads streams written by the old classes into their legacy mirrors.*/
+    private static class LegacyInputStream extends ObjectInputStream {
+        LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            if (desc.getName().equals("Commit")) return ObjectStreamClass.lookup(LegacyCommit.class);
+            if (desc.getName().equals("JavaVC")) return ObjectStreamClass.lookup(LegacyJavaVC.class);
+            return desc;
+        }
+    }
+
+    public static void migrate() {
+        LegacyJavaVC old;
+        try (LegacyInputStream in = new LegacyInputStream(new BufferedInputStream(new FileInputStream(LEGACY_STATE_LOCATION)))) {
+            old = (LegacyJavaVC) in.readObject();
+        } catch (Exception e) {
+            System.out.println("Could not read " + LEGACY_STATE_LOCATION + ": " + e);
+            return;
+        }
+        //Every old commit file holds its whole ancestry, so converting each of them also
+        //covers commits that are no longer reachable from any branch.
+        HashSet<String> converted = new HashSet<>();
+        File[] commitFiles = new File(LEGACY_COMMIT_LOCATION).listFiles();
+        if (commitFiles != null) {
+            for (File f: commitFiles) {
+                if (converted.contains(f.getName())) continue;
+                try (LegacyInputStream in = new LegacyInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                    convertChain((LegacyCommit) in.readObject(), converted);
+                } catch (Exception e) {
+                    //Already in the new format, or not a commit
+                }
+            }
+        }
+        convertChain(old.latestCommit, converted);
+        convertChain(old.HEAD, converted);
+        HashMap<String, String> branches = new HashMap<>();
+        for (String b: old.branchNameToBranchHeadCommit.keySet()) {
+            LegacyCommit c = old.branchNameToBranchHeadCommit.get(b);
+            convertChain(c, converted);
+            branches.put(b, hashOf(c));
+        }
+        //Split points are not kept any more: merge finds the common ancestor in the commit graph
+        for (LegacyCommit c: old.mergeSplitPoints.values()) {
+            convertChain(c, converted);
+        }
+        JavaVC.writeMigratedState(old.currentBranch, hashOf(old.HEAD), hashOf(old.latestCommit), old.stagedFiles, old.removedFiles, branches);
+        new File(LEGACY_STATE_LOCATION).renameTo(new File(LEGACY_STATE_LOCATION + ".bak"));
+        System.out.println("Converted repository to the new .javavc format (" + converted.size() + " commits)");
+    }
+
+    /* Moves commits from .javavc/commits/<hash> and blobs from .javavc/blobs/<hash>/<filename>,
+    * where they were stored uncompressed, into the object store.*/
+    public static void migrateObjects() {
+        int count = 0;
+        ObjectStore objects = ObjectStore.open();
+        File[] commitFiles = new File(LEGACY_COMMIT_LOCATION).listFiles();
+        if (commitFiles != null) {
+            for (File f: commitFiles) {
+                if (objects.contains(f.getName())) {
+                    //Already converted from JAVAVC.ser
+                    f.delete();
+                    continue;
+                }
+                try {
+                    Commit c = Commit.fromBytes(Files.readAllBytes(f.toPath()));
+                    objects.write(c.getCommitHash(), ObjectStore.COMMIT, c.toBytes());
+                    f.delete();
+                    count++;
+                } catch (IOException e) {
+                    System.out.println("Could not convert commit " + f.getName() + ": " + e);
+                }
+            }
+        }
+        File[] blobDirs = new File(LEGACY_BLOB_LOCATION).listFiles();
+        if (blobDirs != null) {
+            for (File dir: blobDirs) {
+                File[] files = dir.listFiles();
+                if (files == null) continue;
+                for (File f: files) {
+                    try {
+                        objects.writeFile(dir.getName(), ObjectStore.BLOB, f);
+                        f.delete();
+                        count++;
+                    } catch (IOException e) {
+                        System.out.println("Could not convert blob " + dir.getName() + ": " + e);
+                    }
+                }
+                dir.delete();
+            }
+        }
+        //Only removed when everything was converted
+        new File(LEGACY_COMMIT_LOCATION).delete();
+        new File(LEGACY_BLOB_LOCATION).delete();
+        System.out.println("Moved " + count + " objects into .javavc/objects");
+    }
+
+    /* Deletes the split point refs, which merge no longer needs now that it finds the common
+    * ancestor in the commit graph.*/
+    public static void removeSplitPoints() {
+        File[] files = new File(LEGACY_SPLIT_POINTS_LOCATION).listFiles();
+        if (files != null) {
+            for (File f: files) f.delete();
+        }
+        new File(LEGACY_SPLIT_POINTS_LOCATION).delete();
+    }
+
+    /* True if the repository was written by an earlier version and is converted by the next command.*/
+    public static boolean isNeeded() {
+        return new File(LEGACY_STATE_LOCATION).exists() || new File(LEGACY_BLOB_LOCATION).exists() || new File(LEGACY_COMMIT_LOCATION).exists()
+                || new File(LEGACY_SPLIT_POINTS_LOCATION).exists() || new File(".javavc").isDirectory() && !new File(OBJECT_FORMAT_LOCATION).exists();
+    }
+
+    /* Marks the repository as naming its objects by their full 40 digit SHA-1.*/
+    static void writeObjectFormat() {
+        Refs.writeFile(new File(OBJECT_FORMAT_LOCATION), "sha1");
+    }
+
+    /* Renames every object to the 40 digit name of its SHA-1. Earlier versions dropped the leading
+    * zero of every byte below 16 from blob and tree names, wrote commit names with 'c' in place of
+    * leading zeros, and hashed only the message and date of a commit. Blob and chunk content keeps
+    * its digest. Chunk manifests, trees and commits are rewritten with the new names of what they
+    * refer to, parents before children, so a commit's new hash covers its tree and parents. Packs
+    * are unpacked first, since a manifest can keep its name while its content changes, and
+    * repacked at the end. Refs and the stage are renamed; the index, commit graph and blame cache
+    * are dropped and rebuilt when next needed.*/
+    public static void migrateObjectIds() {
+        ObjectStore objects = ObjectStore.open();
+        HashMap<String, String> ids = new HashMap<>();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            boolean packed = !objects.packedObjects().isEmpty();
+            objects.unpack();
+            ArrayList<String> chunked = new ArrayList<>();
+            ArrayList<String> commits = new ArrayList<>();
+            for (String hash: objects.looseObjects()) {
+                int type = objects.typeOf(hash);
+                if (type == ObjectStore.BLOB) {
+                    byte[] data = objects.readEntry(hash)[1];
+                    String id = ObjectId.toHex(md.digest(data));
+                    objects.write(id, ObjectStore.BLOB, data);
+                    ids.put(hash, id);
+                } else if (type == ObjectStore.CHUNKED) {
+                    chunked.add(hash);
+                } else if (type == ObjectStore.COMMIT) {
+                    commits.add(hash);
+                }
+            }
+            for (String hash: chunked) renameChunked(objects, hash, ids, md);
+            HashMap<String, String> trees = new HashMap<>();
+            for (String hash: commits) renameCommits(objects, hash, ids, trees, md);
+            ids.putAll(trees);
+            //Trees no commit refers to are dropped with the old objects
+            HashSet<String> renamed = new HashSet<>(ids.values());
+            for (String hash: objects.looseObjects()) {
+                if (renamed.contains(hash)) continue;
+                if (ids.containsKey(hash) || objects.typeOf(hash) == ObjectStore.TREE) objects.deleteLoose(hash);
+            }
+            JavaVC.renameObjects(ids);
+            new File(Index.INDEX_LOCATION).delete();
+            CommitGraph.delete();
+            Blame.clearCache();
+            writeObjectFormat();
+            if (packed) objects.repack();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("Could not convert object names: " + e);
+            return;
+        }
+        System.out.println("Converted the names of " + ids.size() + " objects to full SHA-1 object ids");
+    }
+
+    /* Rewrites a chunk manifest with the new chunk names. Its own name is the digest of the file,
+    * which does not change, but old names could be short.*/
+    private static void renameChunked(ObjectStore objects, String hash, HashMap<String, String> ids, MessageDigest md) throws IOException {
+        byte[] manifest = objects.readEntry(hash)[1];
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifest));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = in.readInt();
+        out.writeInt(count);
+        md.reset();
+        for (int i = 0; i < count; i++) {
+            String chunk = in.readUTF();
+            String renamed = ids.getOrDefault(chunk, chunk);
+            out.writeUTF(renamed);
+            out.writeInt(in.readInt());
+            md.update(objects.readEntry(renamed)[1]);
+        }
+        String id = ObjectId.toHex(md.digest());
+        ids.put(hash, id);
+        objects.overwrite(id, ObjectStore.CHUNKED, bytes.toByteArray());
+    }
+
+    /* Rewrites the commit and the ancestors not rewritten yet. Iterative, as histories can be far
+    * deeper than the stack.*/
+    private static void renameCommits(ObjectStore objects, String hash, HashMap<String, String> ids, HashMap<String, String> trees,
+                                      MessageDigest md) throws IOException {
+        ArrayDeque<String> stack = new ArrayDeque<>();
+        stack.push(hash);
+        while (!stack.isEmpty()) {
+            String top = stack.peek();
+            if (ids.containsKey(top)) {
+                stack.pop();
+                continue;
+            }
+            Commit c = Commit.fromBytes(objects.readEntry(top)[1]);
+            boolean ready = true;
+            for (String parent: new String[]{c.getPrevCommitHash(), c.getMergeParentHash(), c.getGlobalPrevCommitHash()}) {
+                if (parent != null && !ids.containsKey(parent) && objects.contains(parent)) {
+                    stack.push(parent);
+                    ready = false;
+                }
+            }
+            if (!ready) continue;
+            stack.pop();
+            String tree = c.getTreeHash() != null ? renameTree(objects, c.getTreeHash(), ids, trees, md)
+                    : Tree.of(renamedFiles(c.getStagedFiles(), ids)).write(objects);
+            Commit renamed = c.renamed(tree, renamed(c.getPrevCommitHash(), ids), renamed(c.getMergeParentHash(), ids),
+                    renamed(c.getGlobalPrevCommitHash(), ids));
+            objects.write(renamed.getCommitHash(), ObjectStore.COMMIT, renamed.toBytes());
+            ids.put(top, renamed.getCommitHash());
+        }
+    }
+
+    /* Rewrites a tree with the new names of its entries and returns its new name.*/
+    private static String renameTree(ObjectStore objects, String hash, HashMap<String, String> ids, HashMap<String, String> trees,
+                                     MessageDigest md) throws IOException {
+        String done = trees.get(hash);
+        if (done != null) return done;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(objects.readEntry(hash)[1]));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = in.readInt();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String name = in.readUTF();
+            String entry = in.readUTF();
+            out.writeByte(type);
+            out.writeUTF(name);
+            out.writeUTF(type == ObjectStore.TREE ? renameTree(objects, entry, ids, trees, md) : renamed(entry, ids));
+        }
+        out.flush();
+        byte[] data = bytes.toByteArray();
+        String id = ObjectId.toHex(md.digest(data));
+        objects.write(id, ObjectStore.TREE, data);
+        trees.put(hash, id);
+        return id;
+    }
+
+    private static HashMap<String, String> renamedFiles(HashMap<String, String> files, HashMap<String, String> ids) {
+        HashMap<String, String> renamed = new HashMap<>();
+        for (String fileName: files.keySet()) renamed.put(fileName, renamed(files.get(fileName), ids));
+        return renamed;
+    }
+
+    /* The new name of an object, or the old one for an object that is missing.*/
+    private static String renamed(String hash, HashMap<String, String> ids) {
+        return hash == null ? null : ids.getOrDefault(hash, hash);
+    }
+
+    /* Writes the commit and its ancestors, stopping at the first one that is already converted.*/
+    private static void convertChain(LegacyCommit c, HashSet<String> converted) {
+        while (c != null && !converted.contains(c.hash)) {
+            Commit.restore(c.hash, hashOf(c.prevCommit), hashOf(c.globalPrevCommit), c.branch, c.commitMessage, c.author,
+                    c.date, c.formattedDate, c.stagedFiles, c.removedFiles).serializeCommit();
+            converted.add(c.hash);
+            //The global chain covers every commit made before this one, on any branch
+            c = c.globalPrevCommit;
+        }
+    }
+
+    private static String hashOf(LegacyCommit c) {
+        return c == null ? null : c.hash;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/* The lines of a file, kept as offsets into its bytes. Every line is also given an id by an
+* Interner shared between the files being compared, so equal lines get equal ids and a diff
+* only has to compare ints. A line includes its terminating newline, if it has one.*/
+public class Lines {
+    private static final byte[] NO_DATA = new byte[0];
+    final byte[] data;
+    final int[] starts; //Line i spans data[starts[i], starts[i + 1])
+    final int[] ids;
+
+    private Lines(byte[] data, int[] starts, int[] ids) {
+        this.data = data;
+        this.starts = starts;
+        this.ids = ids;
+    }
+
+    public static Lines of(byte[] data, Interner interner) {
+        if (data == null) data = NO_DATA;
+        int count = 0;
+        for (byte b: data) {
+            if (b == '\n') count++;
+        }
+        if (data.length > 0 && data[data.length - 1] != '\n') count++;
+        int[] starts = new int[count + 1];
+        int[] ids = new int[count];
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                starts[line] = start;
+                ids[line] = interner.intern(data, start, i + 1);
+                line++;
+                start = i + 1;
+            }
+        }
+        if (start < data.length) {
+            starts[line] = start;
+            ids[line] = interner.intern(data, start, data.length);
+            line++;
+        }
+        starts[count] = data.length;
+        return new Lines(data, starts, ids);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /* Writes lines [from, to). Returns true if the last line written ended with a newline.*/
+    public boolean write(OutputStream out, int from, int to) throws IOException {
+        if (from >= to) return true;
+        out.write(data, starts[from], starts[to] - starts[from]);
+        return data[starts[to] - 1] == '\n';
+    }
+
+    /* Gives each distinct line content one int id, using an open-addressing table that refers
+    * back into the files' own bytes instead of copying every line into a String.*/
+    public static class Interner {
+        private int[] table = new int[1024]; //id + 1 per slot, 0 when empty
+        private byte[][] sources = new byte[256][];
+        private int[] lineStarts = new int[256];
+        private int[] lineEnds = new int[256];
+        private int[] hashes = new int[256];
+        private int count;
+
+        public int intern(byte[] data, int start, int end) {
+            int hash = hash(data, start, end);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (id < 0) {
+                    id = add(data, start, end, hash);
+                    table[slot] = id + 1;
+                    if (count * 2 > table.length) rehash();
+                    return id;
+                }
+                if (hashes[id] == hash && equal(sources[id], lineStarts[id], lineEnds[id], data, start, end)) {
+                    return id;
+                }
+            }
+        }
+
+        public int size() {
+            return count;
+        }
+
+        private int add(byte[] data, int start, int end, int hash) {
+            if (count == hashes.length) {
+                int capacity = count * 2;
+                sources = Arrays.copyOf(sources, capacity);
+                lineStarts = Arrays.copyOf(lineStarts, capacity);
+                lineEnds = Arrays.copyOf(lineEnds, capacity);
+                hashes = Arrays.copyOf(hashes, capacity);
+            }
+            sources[count] = data;
+            lineStarts[count] = start;
+            lineEnds[count] = end;
+            hashes[count] = hash;
+            return count++;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for (int id = 0; id < count; id++) {
+                int slot = hashes[id] & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = id + 1;
+            }
+        }
+
+        private static int hash(byte[] data, int start, int end) {
+            int h = 0x811c9dc5;
+            for (int i = start; i < end; i++) {
+                h = (h ^ data[i]) * 0x01000193;
+            }
+            return h ^ (h >>> 15);
+        }
+
+        private static boolean equal(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+            if (aEnd - aStart != bEnd - bStart) return false;
+            for (int i = 0; i < aEnd - aStart; i++) {
+                if (a[aStart + i] != b[bStart + i]) return false;
+            }
+            return true;
+        }
+    }
+}
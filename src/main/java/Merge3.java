@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/* Three-way line merge in the style of diff3. Both sides are diffed against their common
+* ancestor; changes that touch different parts of the ancestor are combined, and only regions
+* changed differently on both sides are written as conflicts:
+*
+*   <<<<<<< HEAD
+*   our lines
+*   =======
+*   their lines
+*   >>>>>>> branch
+*
+* The result is written to the output as it is produced.*/
+public class Merge3 {
+
+    /* Writes the merged file and returns the number of conflicting regions.*/
+    public static int merge(Lines base, Lines ours, Lines theirs, String oursLabel, String theirsLabel, OutputStream out) throws IOException {
+        int[] ha = Diff.diff(base.ids, ours.ids);
+        int[] hb = Diff.diff(base.ids, theirs.ids);
+        int i = 0; //Next hunk in ha
+        int j = 0; //Next hunk in hb
+        int deltaA = 0; //Line number in ours minus line number in base, after the hunks consumed so far
+        int deltaB = 0;
+        int pos = 0; //Base lines before pos are written
+        int conflicts = 0;
+        boolean newline = true;
+        while (i < ha.length || j < hb.length) {
+            //Start a region at the hunk that comes first in the base, and grow it while a hunk
+            //from either side overlaps or touches it
+            int lo;
+            if (j >= hb.length || (i < ha.length && ha[i] <= hb[j])) lo = ha[i];
+            else lo = hb[j];
+            int hi = lo;
+            int firstA = i, firstB = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                if (i < ha.length && ha[i] <= hi) {
+                    hi = Math.max(hi, ha[i + 1]);
+                    i += 4;
+                    grew = true;
+                }
+                if (j < hb.length && hb[j] <= hi) {
+                    hi = Math.max(hi, hb[j + 1]);
+                    j += 4;
+                    grew = true;
+                }
+            }
+            if (lo > pos) newline = base.write(out, pos, lo);
+            int aStart = lo + deltaA;
+            for (int h = firstA; h < i; h += 4) deltaA += (ha[h + 3] - ha[h + 2]) - (ha[h + 1] - ha[h]);
+            int aEnd = hi + deltaA;
+            int bStart = lo + deltaB;
+            for (int h = firstB; h < j; h += 4) deltaB += (hb[h + 3] - hb[h + 2]) - (hb[h + 1] - hb[h]);
+            int bEnd = hi + deltaB;
+
+            boolean changedA = i > firstA;
+            boolean changedB = j > firstB;
+            if (!changedB) {
+                newline = write(ours, aStart, aEnd, out, newline);
+            } else if (!changedA || sameLines(ours, aStart, aEnd, theirs, bStart, bEnd)) {
+                newline = write(theirs, bStart, bEnd, out, newline);
+            } else {
+                conflicts++;
+                newline = marker(out, newline, "<<<<<<< " + oursLabel);
+                newline = write(ours, aStart, aEnd, out, newline);
+                newline = marker(out, newline, "=======");
+                newline = write(theirs, bStart, bEnd, out, newline);
+                newline = marker(out, newline, ">>>>>>> " + theirsLabel);
+            }
+            pos = hi;
+        }
+        base.write(out, pos, base.size());
+        out.flush();
+        return conflicts;
+    }
+
+    private static boolean write(Lines lines, int from, int to, OutputStream out, boolean newline) throws IOException {
+        return from < to ? lines.write(out, from, to) : newline;
+    }
+
+    private static boolean marker(OutputStream out, boolean newline, String marker) throws IOException {
+        if (!newline) out.write('\n');
+        out.write((marker + "\n").getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private static boolean sameLines(Lines a, int aStart, int aEnd, Lines b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) return false;
+        for (int k = 0; k < aEnd - aStart; k++) {
+            if (a.ids[aStart + k] != b.ids[bStart + k]) return false;
+        }
+        return true;
+    }
+}
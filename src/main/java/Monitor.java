@@ -0,0 +1,349 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/* File system monitor. The monitor command watches the working directory and appends every path
+* that changes to a journal, so that status, diff and add . only have to look at those paths
+* instead of listing and stat-ing the whole tree.
+*
+* Journal (.javavc/monitor): a header line with the id of the monitor run, then one line per event:
+* "P path" for a changed file or directory, "O" when events were lost and the whole tree has to be
+* scanned, and "C name" once a cookie file created by a command has been seen. Commands create a
+* cookie and wait for it to show up, so that every change made before the command started is in
+* the journal by the time it is read.
+*
+* State (.javavc/monitor.state): what the last command learned: the monitor run and journal offset
+* it read up to, every working file, and the files whose index entry was not confirmed to match
+* their content. Every other file is taken to be unchanged since the index recorded it.*/
+public class Monitor {
+    private static final String JOURNAL_LOCATION = ".javavc/monitor";
+    private static final String STATE_LOCATION = ".javavc/monitor.state";
+    private static final String LOCK_LOCATION = ".javavc/monitor.lock";
+    private static final String STOP_NAME = "monitor.stop";
+    private static final String COOKIE_PREFIX = "monitor-cookie-";
+    private static final String HEADER = "javavc-monitor ";
+    private static final int STATE_VERSION = 1;
+    private static final long JOURNAL_LIMIT = 4 << 20; //A new journal is started past this size
+
+    private String id; //Monitor run the journal belongs to
+    private long offset; //Journal position read up to
+    private boolean fullScan; //The journal does not cover everything since the last state was saved
+    private final HashSet<String> dirty = new HashSet<>();
+    private TreeSet<String> files;
+    private Set<String> unverified = ConcurrentHashMap.newKeySet();
+    private boolean refreshed;
+
+    private Monitor() {}
+
+    /* Reads the changes since the last command, or returns null when no monitor is running (or it
+    * did not answer within monitor.timeout milliseconds) and the working tree has to be scanned.*/
+    public static Monitor connect() {
+        if (!isRunning()) return null;
+        File cookie = new File(".javavc/" + COOKIE_PREFIX + UUID.randomUUID());
+        try {
+            Monitor m = new Monitor();
+            m.loadState();
+            if (!cookie.createNewFile()) return null;
+            long deadline = System.currentTimeMillis() + Config.getInt("monitor.timeout", 1000);
+            while (!m.readJournal(cookie.getName())) {
+                if (System.currentTimeMillis() > deadline) return null;
+                Thread.sleep(1);
+            }
+            return m;
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            cookie.delete();
+        }
+    }
+
+    private static boolean isRunning() {
+        File lockFile = new File(LOCK_LOCATION);
+        if (!lockFile.exists()) return false;
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.READ)) {
+            FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true; //Held by a monitor running in this process
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void loadState() {
+        File file = new File(STATE_LOCATION);
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != STATE_VERSION) return;
+            String stateId = in.readUTF();
+            long stateOffset = in.readLong();
+            TreeSet<String> stateFiles = new TreeSet<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) stateFiles.add(in.readUTF());
+            count = in.readInt();
+            for (int i = 0; i < count; i++) unverified.add(in.readUTF());
+            id = stateId;
+            offset = stateOffset;
+            files = stateFiles;
+        } catch (IOException e) {
+            System.out.println(e);
+            unverified.clear();
+        }
+    }
+
+    /* Reads the complete lines added to the journal since offset. Returns true once the line
+    * acknowledging cookie has been read.*/
+    private boolean readJournal(String cookie) throws IOException {
+        boolean acknowledged = false;
+        try (RandomAccessFile journal = new RandomAccessFile(JOURNAL_LOCATION, "r")) {
+            String header = journal.readLine();
+            if (header == null || !header.startsWith(HEADER)) return false;
+            String journalId = header.substring(HEADER.length());
+            if (!journalId.equals(id) || offset > journal.length()) {
+                //A new monitor run (or a new journal): what happened before it started is unknown
+                fullScan = true;
+                id = journalId;
+                offset = journal.getFilePointer();
+            }
+            byte[] data = new byte[(int) (journal.length() - offset)];
+            journal.seek(offset);
+            journal.readFully(data);
+            int start = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != '\n') continue;
+                String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                if (line.equals("O")) fullScan = true;
+                else if (line.startsWith("P ")) dirty.add(line.substring(2));
+                else if (line.equals("C " + cookie)) acknowledged = true;
+            }
+            offset += start;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        return acknowledged;
+    }
+
+    /* Every working file, as paths relative to the working directory. scan lists the allowed files
+    * at or below a path ("" for the whole tree); only the paths in the journal are scanned again,
+    * unless the journal can not be trusted.*/
+    public List<String> workingFiles(Function<String, List<String>> scan) {
+        if (!refreshed) {
+            refreshed = true;
+            if (fullScan || files == null) {
+                fullScan = true;
+                files = new TreeSet<>(scan.apply(""));
+                unverified.addAll(files);
+            } else {
+                for (String path: dirty) {
+                    files.remove(path);
+                    files.subSet(path + "/", path + "0").clear(); //Everything below it, '0' follows '/'
+                    List<String> found = scan.apply(path);
+                    files.addAll(found);
+                    unverified.addAll(found);
+                }
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    /* True when the file has not changed since its index entry was confirmed, so the hash in the
+    * index can be used without looking at the file.*/
+    public boolean isClean(String path) {
+        return refreshed && !fullScan && !unverified.contains(path);
+    }
+
+    /* The index entry of path was just checked against (or computed from) the file's content.*/
+    public void verified(String path) {
+        unverified.remove(path);
+    }
+
+    public void save() {
+        if (!refreshed || !new File(".javavc").exists()) return;
+        unverified.retainAll(files);
+        File tmp = new File(STATE_LOCATION + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(id);
+            out.writeLong(offset);
+            out.writeInt(files.size());
+            for (String path: files) out.writeUTF(path);
+            out.writeInt(unverified.size());
+            for (String path: unverified) out.writeUTF(path);
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        File file = new File(STATE_LOCATION);
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+    }
+
+    /* monitor --stop: asks the running monitor to exit.*/
+    public static void stop() {
+        if (!isRunning()) {
+            System.out.println("No monitor is running");
+            return;
+        }
+        try {
+            new File(".javavc/" + STOP_NAME).createNewFile();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* monitor: watches the working directory until monitor --stop is run or .javavc is removed.
+    * Only one monitor runs per repository, which the lock on .javavc/monitor.lock ensures.*/
+    public static void run() {
+        if (!new File(".javavc").exists()) {
+            System.out.println("Not a javavc repository");
+            return;
+        }
+        try (FileChannel lockChannel = FileChannel.open(Paths.get(LOCK_LOCATION), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                System.out.println("A monitor is already running in this repository");
+                return;
+            }
+            new File(".javavc/" + STOP_NAME).delete();
+            try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+                new Watcher(watcher).watch();
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    private static class Watcher {
+        private final WatchService watcher;
+        private final Path root = JavaVC.cwd.toPath().toAbsolutePath();
+        private final HashMap<WatchKey, String> dirs = new HashMap<>(); //Watched directory of each key, "" for the root
+        private WatchKey control; //Key of .javavc, where cookies and the stop file appear
+
+        Watcher(WatchService watcher) {
+            this.watcher = watcher;
+        }
+
+        void watch() throws IOException {
+            register("");
+            control = root.resolve(".javavc").register(watcher, ENTRY_CREATE);
+            //The journal is only started once every directory is watched, so nothing is missed
+            startJournal();
+            System.out.println("Monitoring " + root + ", stop with monitor --stop");
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                LinkedHashSet<String> lines = new LinkedHashSet<>();
+                ArrayList<String> cookies = new ArrayList<>();
+                boolean stop = false;
+                //Take every key that is ready before answering cookies, so their events are written first
+                while (key != null) {
+                    stop |= handle(key, lines, cookies);
+                    key = watcher.poll();
+                }
+                lines.addAll(cookies);
+                if (!new File(JOURNAL_LOCATION).exists() || new File(JOURNAL_LOCATION).length() > JOURNAL_LIMIT) startJournal();
+                append(lines);
+                if (stop || !control.isValid()) return;
+            }
+        }
+
+        /* Returns true when the stop file showed up.*/
+        private boolean handle(WatchKey key, Set<String> lines, List<String> cookies) throws IOException {
+            boolean stop = false;
+            String dir = dirs.get(key);
+            for (WatchEvent<?> event: key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    lines.add("O");
+                    register(""); //Directories created meanwhile may have been missed
+                    continue;
+                }
+                String name = event.context().toString();
+                if (key == control) {
+                    if (name.startsWith(COOKIE_PREFIX)) cookies.add("C " + name);
+                    else if (name.equals(STOP_NAME)) stop = true;
+                    continue;
+                }
+                if (dir == null || name.startsWith(".")) continue;
+                String path = dir.isEmpty() ? name : dir + "/" + name;
+                boolean isDirectory = Files.isDirectory(root.resolve(path), LinkOption.NOFOLLOW_LINKS);
+                //A directory is modified when its entries change, which its own key reports
+                if (event.kind() == ENTRY_MODIFY && isDirectory) continue;
+                if (event.kind() == ENTRY_CREATE && isDirectory) register(path);
+                lines.add("P " + path);
+            }
+            if (!key.reset()) dirs.remove(key);
+            if (stop) new File(".javavc/" + STOP_NAME).delete();
+            return stop;
+        }
+
+        /* Watches the directory at path and every directory below it, except dot directories.*/
+        private void register(String path) throws IOException {
+            Path dir = path.isEmpty() ? root : root.resolve(path);
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                dirs.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path);
+                for (Path child: children) {
+                    String name = child.getFileName().toString();
+                    if (!name.startsWith(".") && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        register(path.isEmpty() ? name : path + "/" + name);
+                    }
+                }
+            } catch (NoSuchFileException | NotDirectoryException e) {
+                //Removed again before it could be watched, its parent reports that
+            }
+        }
+
+        /* Replaces the journal with an empty one for a new id. Commands that read the old one scan
+        * the whole tree once.*/
+        private void startJournal() throws IOException {
+            File tmp = new File(JOURNAL_LOCATION + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write((HEADER + UUID.randomUUID() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            File file = new File(JOURNAL_LOCATION);
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        }
+
+        /* Appends all lines in one write, so readers never see part of a batch without its end.*/
+        private void append(Set<String> lines) throws IOException {
+            if (lines.isEmpty()) return;
+            StringBuilder batch = new StringBuilder();
+            for (String line: lines) batch.append(line).append('\n');
+            try (FileChannel journal = FileChannel.open(Paths.get(JOURNAL_LOCATION), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) journal.write(buffer);
+            }
+        }
+    }
+}
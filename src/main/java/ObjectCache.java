@@ -0,0 +1,76 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Least recently used cache of objects read from the object store (parsed commits and small
+* blobs), bounded by the approximate number of bytes they take. Values are shared between
+* callers and must not be modified. Counts hits, misses and evictions so the budget
+* (cache.bytes) can be sized for a workload.*/
+public class ObjectCache {
+    private final long budget;
+    private long used;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private static class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    public ObjectCache(long budget) {
+        this.budget = budget;
+    }
+
+    /* Returns the cached value, or null on a miss.*/
+    public synchronized Object get(String hash) {
+        Entry e = entries.get(hash);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /* Values larger than a sixteenth of the budget are not cached, so one big object can not
+    * push out everything else.*/
+    public synchronized void put(String hash, Object value, long size) {
+        if (size > budget / 16) return;
+        Entry old = entries.put(hash, new Entry(value, size));
+        if (old != null) used -= old.size;
+        used += size;
+        Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+        while (used > budget && oldest.hasNext()) {
+            used -= oldest.next().getValue().size;
+            oldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void remove(String hash) {
+        Entry old = entries.remove(hash);
+        if (old != null) used -= old.size;
+    }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized long getEvictions() { return evictions; }
+
+    public synchronized long getUsed() { return used; }
+
+    public long getBudget() { return budget; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("object cache: %d hits, %d misses, %d evictions, %d of %d bytes used", hits, misses, evictions, used, budget);
+    }
+}
@@ -0,0 +1,144 @@
+import java.nio.ByteBuffer;
+
+/* The name of a stored object: the 20 bytes of its SHA-1 digest, written as 40 lowercase hex
+* digits. An ObjectId keeps the bytes in five ints rather than an array or a String, so it is a
+* single small allocation and compares and hashes without going through characters. The static
+* methods convert between digests and hex without building intermediate strings, and read
+* the words of a hex name in place, for ObjectIdMap lookups by String.*/
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int LENGTH = 20;
+    public static final int HEX_LENGTH = 40;
+    static final int WORDS = 5;
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private final int w0, w1, w2, w3, w4;
+
+    private ObjectId(int w0, int w1, int w2, int w3, int w4) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+    }
+
+    public static ObjectId fromBytes(byte[] digest) {
+        return new ObjectId(word(digest, 0), word(digest, 1), word(digest, 2), word(digest, 3), word(digest, 4));
+    }
+
+    private static int word(byte[] digest, int i) {
+        return (digest[4 * i] & 0xff) << 24 | (digest[4 * i + 1] & 0xff) << 16 | (digest[4 * i + 2] & 0xff) << 8 | (digest[4 * i + 3] & 0xff);
+    }
+
+    /* Parses a full 40 digit name; throws IllegalArgumentException for anything else.*/
+    public static ObjectId fromHex(CharSequence hex) {
+        if (!isHex(hex)) throw new IllegalArgumentException("Not an object id: " + hex);
+        return new ObjectId(word(hex, 0), word(hex, 1), word(hex, 2), word(hex, 3), word(hex, 4));
+    }
+
+    /* True for a full name: exactly 40 hex digits.*/
+    public static boolean isHex(CharSequence hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) return false;
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            if (digit(hex.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    /* True for lowercase hex digits only, as in the start of a name.*/
+    public static boolean isHexPrefix(CharSequence hex) {
+        for (int i = 0; i < hex.length(); i++) {
+            if (digit(hex.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    /* Word i (of five) of a full hex name, which must be valid.*/
+    static int word(CharSequence hex, int i) {
+        int w = 0;
+        for (int k = 8 * i; k < 8 * i + 8; k++) w = (w << 4) | digit(hex.charAt(k));
+        return w;
+    }
+
+    static int digit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+    /* The 40 digit name of a SHA-1 digest, with every byte written as two digits.*/
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[2 * digest.length];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = DIGITS[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /* The name of the 20 byte id stored at offset in buffer.*/
+    public static String toHex(ByteBuffer buffer, int offset) {
+        char[] hex = new char[HEX_LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            byte b = buffer.get(offset + i);
+            hex[2 * i] = DIGITS[(b >> 4) & 0xf];
+            hex[2 * i + 1] = DIGITS[b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public byte[] toBytes() {
+        byte[] digest = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) digest[i] = (byte) (word(i >> 2) >>> (24 - 8 * (i & 3)));
+        return digest;
+    }
+
+    /* Writes the 40 digit name into dest at offset, without allocating.*/
+    public void copyHex(char[] dest, int offset) {
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            dest[offset + i] = DIGITS[(word(i >> 3) >>> (28 - 4 * (i & 7))) & 0xf];
+        }
+    }
+
+    int word(int i) {
+        switch (i) {
+            case 0: return w0;
+            case 1: return w1;
+            case 2: return w2;
+            case 3: return w3;
+            default: return w4;
+        }
+    }
+
+    public String name() {
+        char[] hex = new char[HEX_LENGTH];
+        copyHex(hex, 0);
+        return new String(hex);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ObjectId)) return false;
+        ObjectId other = (ObjectId) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3 && w4 == other.w4;
+    }
+
+    /* The digest is already uniformly distributed: its first word is as good as any hash of it.*/
+    @Override
+    public int hashCode() {
+        return w0;
+    }
+
+    /* Orders like the hex names.*/
+    @Override
+    public int compareTo(ObjectId other) {
+        for (int i = 0; i < WORDS; i++) {
+            int cmp = Integer.compareUnsigned(word(i), other.word(i));
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+}
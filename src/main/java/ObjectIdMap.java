@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/* Map from object id to a non-negative int, also used as a set of ids. Open addressing with linear
+* probing over flat int arrays: a slot is five key words and a value, so entries cost no objects
+* at all, and ids can be looked up straight from their hex names without parsing them into an
+* ObjectId first. The table doubles once it is half full.*/
+public class ObjectIdMap {
+    private static final int EMPTY = -1;
+    private int[] keys; //ObjectId.WORDS words per slot
+    private int[] values; //EMPTY for a free slot
+    private int size;
+
+    public ObjectIdMap() {
+        this(16);
+    }
+
+    public ObjectIdMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new int[capacity * ObjectId.WORDS];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* The value for the id, or -1 when it is not in the map.*/
+    public int get(ObjectId id) {
+        int slot = find(id.word(0), id.word(1), id.word(2), id.word(3), id.word(4));
+        return values[slot];
+    }
+
+    /* Like get(ObjectId), by hex name; -1 also for anything that is not a full name.*/
+    public int get(CharSequence hex) {
+        if (!ObjectId.isHex(hex)) return -1;
+        int slot = find(ObjectId.word(hex, 0), ObjectId.word(hex, 1), ObjectId.word(hex, 2), ObjectId.word(hex, 3), ObjectId.word(hex, 4));
+        return values[slot];
+    }
+
+    public boolean contains(CharSequence hex) {
+        return get(hex) >= 0;
+    }
+
+    public void put(ObjectId id, int value) {
+        put(id.word(0), id.word(1), id.word(2), id.word(3), id.word(4), value);
+    }
+
+    public void put(CharSequence hex, int value) {
+        if (!ObjectId.isHex(hex)) throw new IllegalArgumentException("Not an object id: " + hex);
+        put(ObjectId.word(hex, 0), ObjectId.word(hex, 1), ObjectId.word(hex, 2), ObjectId.word(hex, 3), ObjectId.word(hex, 4), value);
+    }
+
+    /* Adds the id with value 0 unless it is present. Returns true if it was added, as a set would.*/
+    public boolean add(CharSequence hex) {
+        if (!ObjectId.isHex(hex)) throw new IllegalArgumentException("Not an object id: " + hex);
+        int w0 = ObjectId.word(hex, 0), w1 = ObjectId.word(hex, 1), w2 = ObjectId.word(hex, 2), w3 = ObjectId.word(hex, 3), w4 = ObjectId.word(hex, 4);
+        if (values[find(w0, w1, w2, w3, w4)] >= 0) return false;
+        put(w0, w1, w2, w3, w4, 0);
+        return true;
+    }
+
+    private void put(int w0, int w1, int w2, int w3, int w4, int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value");
+        int slot = find(w0, w1, w2, w3, w4);
+        if (values[slot] == EMPTY) {
+            if (2 * (size + 1) > values.length) {
+                grow();
+                slot = find(w0, w1, w2, w3, w4);
+            }
+            int k = slot * ObjectId.WORDS;
+            keys[k] = w0;
+            keys[k + 1] = w1;
+            keys[k + 2] = w2;
+            keys[k + 3] = w3;
+            keys[k + 4] = w4;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /* The slot holding the key, or the free slot where it would go.*/
+    private int find(int w0, int w1, int w2, int w3, int w4) {
+        int mask = values.length - 1;
+        for (int slot = w0 & mask; ; slot = (slot + 1) & mask) {
+            if (values[slot] == EMPTY) return slot;
+            int k = slot * ObjectId.WORDS;
+            if (keys[k] == w0 && keys[k + 1] == w1 && keys[k + 2] == w2 && keys[k + 3] == w3 && keys[k + 4] == w4) return slot;
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, EMPTY);
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] == EMPTY) continue;
+            int k = slot * ObjectId.WORDS;
+            int s = find(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2], oldKeys[k + 3], oldKeys[k + 4]);
+            System.arraycopy(oldKeys, k, keys, s * ObjectId.WORDS, ObjectId.WORDS);
+            values[s] = oldValues[slot];
+        }
+    }
+}
@@ -0,0 +1,878 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/* Content-addressed storage for blobs, trees and commits. New objects are written loose, one deflated
+* file per object under .javavc/objects/<first two hash characters>/<rest of the hash>.
+* repack() moves every object into a single pack file in which older versions of a file are
+* stored as deltas against newer ones, next to a PackIndex mapping each hash to its offset.
+*
+* Files of at least chunk.threshold bytes are stored as a CHUNKED object under the file's blob hash:
+* a manifest of the chunks the Chunker cut the file into, each stored as a blob of its own, so a
+* new version of a large file only adds the chunks that changed. Readers get the whole file back.
+*
+* Loose object: type byte, encoding byte (stored or deflated), content.
+* Chunk manifest: chunk count, then for every chunk its hash and length.
+* Pack: "JVPK", version, object count, entries, SHA-1 of everything before it.
+* Pack entry: type byte, varint size, [varint distance back to the delta base], varint
+* compressed length, deflated content (or delta against the base). */
+public class ObjectStore {
+    public static final int BLOB = 1;
+    public static final int COMMIT = 2;
+    public static final int TREE = 3;
+    public static final int CHUNKED = 4;
+    public static final int MIN_ABBREVIATION = 4; //Hex digits an abbreviated object name needs
+    private static final int DELTA = 7;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 1;
+    private static final int PACK_MAGIC = 0x4a56504b; //"JVPK"
+    private static final int PACK_INDEX_MAGIC = PackIndex.MAGIC;
+    private static final int PACK_VERSION = 1;
+    private static final int MAX_DELTA_DEPTH = 50;
+    private static final String OBJECTS_LOCATION = ".javavc/objects";
+    private static final String PACK_LOCATION = ".javavc/objects/pack";
+    private static ObjectStore instance;
+    private ArrayList<Pack> packs;
+    private final ConcurrentHashMap<String, File> staged = new ConcurrentHashMap<>(); //fsync=batch: hash to temporary file, until flush()
+    private final ObjectCache cache = new ObjectCache(Config.getInt("cache.bytes", 32 * 1024 * 1024));
+    //Per thread: digests for the file and its chunks, the read buffer and the chunker, reused for every file
+    private static final ThreadLocal<MessageDigest[]> CHUNK_DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return new MessageDigest[]{MessageDigest.getInstance("SHA-1"), MessageDigest.getInstance("SHA-1")};
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> CHUNK_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+    private static final ThreadLocal<Chunker> CHUNKER = ThreadLocal.withInitial(Chunker::new);
+
+    private ObjectStore() {}
+
+    public static synchronized ObjectStore open() {
+        if (instance == null) {
+            instance = new ObjectStore();
+        }
+        return instance;
+    }
+
+    /* Closes the packs and drops the cached objects, so the next open() starts from what is on disk.*/
+    public static synchronized void close() {
+        if (instance != null) {
+            try {
+                instance.flush();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+        if (instance != null && instance.packs != null) {
+            for (Pack p: instance.packs) {
+                try {
+                    p.close();
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+            }
+        }
+        instance = null;
+    }
+
+    private static File loosePath(String hash) {
+        return new File(OBJECTS_LOCATION + "/" + hash.substring(0, 2) + "/" + hash.substring(2));
+    }
+
+    /* The file holding a loose object: its temporary file while it is staged.*/
+    private File looseFile(String hash) {
+        File tmp = staged.get(hash);
+        return tmp != null && tmp.exists() ? tmp : loosePath(hash); //Gone: flush() just moved it
+    }
+
+    /* Flushes the objects staged in this process, if the store is open (see Durability).*/
+    public static void flushStaged() throws IOException {
+        ObjectStore objects;
+        synchronized (ObjectStore.class) {
+            objects = instance;
+        }
+        if (objects != null) objects.flush();
+    }
+
+    /* Syncs the staged objects all at once, renames them into place and syncs each of their
+    * directories once. They stay readable through staged until they are in place.*/
+    public synchronized void flush() throws IOException {
+        if (staged.isEmpty()) return;
+        long start = Stats.start();
+        HashMap<String, File> batch = new HashMap<>(staged);
+        Durability.syncAll(batch.values());
+        TreeSet<File> dirs = new TreeSet<>();
+        for (Map.Entry<String, File> e: batch.entrySet()) {
+            File dest = loosePath(e.getKey());
+            moveInto(e.getValue(), dest);
+            staged.remove(e.getKey(), e.getValue());
+            dirs.add(dest.getParentFile());
+        }
+        for (File dir: dirs) Durability.syncDirectory(dir);
+        Stats.time(Stats.Phase.SYNC, start);
+    }
+
+    /* Puts a finished temporary object file in place: staged until flush() with fsync=batch, synced
+    * with its directory right away with strict. Unless replace is set, a copy another writer
+    * stored first is kept: the content is the same.*/
+    private void install(String hash, File tmp, boolean replace) throws IOException {
+        if (!replace && Durability.mode() == Durability.Mode.BATCH) {
+            if (staged.putIfAbsent(hash, tmp) != null) tmp.delete(); //Another thread stored it first
+            return;
+        }
+        long start = Stats.start();
+        File dest = loosePath(hash);
+        Durability.sync(tmp);
+        if (replace && !tmp.renameTo(dest)) dest.delete();
+        moveInto(tmp, dest);
+        Durability.syncDirectory(dest.getParentFile());
+        Stats.time(Stats.Phase.SYNC, start);
+    }
+
+    /* Packed objects are checked first: that only touches the mapped pack indexes, so a file
+    * system lookup is needed just for objects that have not been packed.*/
+    public boolean contains(String hash) {
+        for (Pack p: getPacks()) {
+            if (p.index.contains(hash)) return true;
+        }
+        return looseFile(hash).exists();
+    }
+
+    /* The full name of the object an abbreviated name stands for: at least MIN_ABBREVIATION hex
+    * digits, the start of exactly one object name. Any other name is returned as it is, so the
+    * caller reports it missing. Returns null, after saying so, when the name is ambiguous.*/
+    public String resolve(String name) {
+        if (name.length() < MIN_ABBREVIATION || name.length() >= ObjectId.HEX_LENGTH || !ObjectId.isHexPrefix(name)) return name;
+        TreeSet<String> matches = new TreeSet<>();
+        for (Pack p: getPacks()) p.index.findPrefix(name, matches);
+        String[] loose = new File(OBJECTS_LOCATION, name.substring(0, 2)).list();
+        if (loose != null) {
+            for (String f: loose) {
+                if (f.startsWith(name.substring(2)) && !f.endsWith(".tmp")) matches.add(name.substring(0, 2) + f);
+            }
+        }
+        if (matches.size() == 1) return matches.first();
+        if (matches.isEmpty()) return name;
+        System.out.println("Object name " + name + " is ambiguous, it could be " + String.join(" or ", matches));
+        return null;
+    }
+
+    /* Stores the contents of a file under the given hash, streaming it through the compressor.*/
+    public void writeFile(String hash, int type, File f) throws IOException {
+        if (contains(hash)) return;
+        Stats.count(Stats.Counter.OBJECTS_WRITTEN, 1);
+        Stats.count(Stats.Counter.BYTES_WRITTEN, f.length());
+        File dest = loosePath(hash);
+        dest.getParentFile().mkdirs();
+        File tmp = File.createTempFile("obj", ".tmp", dest.getParentFile());
+        try (InputStream in = new FileInputStream(f); OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            out.write(type);
+            out.write(DEFLATED);
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                deflated.write(buffer, 0, n);
+            }
+            deflated.finish();
+        }
+        if (tmp.length() - 2 >= f.length()) {
+            //Incompressible content: keep it as is, which also makes reading it back cheaper
+            try (InputStream in = new FileInputStream(f); OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                out.write(type);
+                out.write(STORED);
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+        install(hash, tmp, false);
+    }
+
+    public void write(String hash, int type, byte[] data) throws IOException {
+        write(hash, type, data, data.length);
+    }
+
+    private void write(String hash, int type, byte[] data, int length) throws IOException {
+        if (contains(hash)) return;
+        writeLoose(hash, type, data, length, false);
+    }
+
+    /* Writes the object loose through a temporary file and a rename, so readers never see part of it.*/
+    private void writeLoose(String hash, int type, byte[] data, int length, boolean replace) throws IOException {
+        Stats.count(Stats.Counter.OBJECTS_WRITTEN, 1);
+        Stats.count(Stats.Counter.BYTES_WRITTEN, length);
+        File dest = loosePath(hash);
+        dest.getParentFile().mkdirs();
+        File tmp = File.createTempFile("obj", ".tmp", dest.getParentFile());
+        byte[] compressed = deflate(data, length);
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(type);
+            if (compressed.length < length) {
+                out.write(DEFLATED);
+                out.write(compressed);
+            } else {
+                out.write(STORED);
+                out.write(data, 0, length);
+            }
+        }
+        install(hash, tmp, replace);
+    }
+
+    /* Replaces the loose object with new content under the same name. Only for renaming objects,
+    * where a manifest can keep its name while the names in it change; packs must be unpacked first.*/
+    void overwrite(String hash, int type, byte[] data) throws IOException {
+        cache.remove(hash);
+        writeLoose(hash, type, data, data.length, true);
+    }
+
+    /* Copies every packed object out as a loose object and removes the packs.*/
+    void unpack() throws IOException {
+        List<Pack> old = getPacks();
+        for (Pack p: old) {
+            for (int i = 0; i < p.index.size(); i++) {
+                String name = p.index.nameAt(i);
+                if (looseFile(name).exists()) continue;
+                byte[][] entry = p.read(p.index.offset(name));
+                writeLoose(name, entry[0][0], entry[1], entry[1].length, false);
+            }
+        }
+        packs = null;
+        for (Pack p: old) {
+            p.close();
+            p.indexFile.delete();
+            p.packFile.delete();
+        }
+    }
+
+    /* Stores a large file as chunks and returns its blob hash, in a single pass over the file:
+    * every buffer read is added to the file's hash and cut into chunks, and each chunk is hashed
+    * and stored (unless it already is) as soon as it is complete.*/
+    public String writeChunked(File f) throws IOException {
+        MessageDigest[] digests = CHUNK_DIGESTS.get();
+        MessageDigest fileDigest = digests[0];
+        MessageDigest chunkDigest = digests[1];
+        byte[] buffer = CHUNK_BUFFER.get();
+        Chunker chunker = CHUNKER.get();
+        fileDigest.reset();
+        chunker.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream manifest = new DataOutputStream(bytes);
+        int count = 0;
+        manifest.writeInt(0); //Chunk count, filled in below
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                fileDigest.update(buffer, 0, n);
+                for (int i = 0; i < n; ) {
+                    i += chunker.add(buffer, i, n - i);
+                    if (chunker.isFull()) {
+                        writeChunk(chunker, chunkDigest, manifest);
+                        count++;
+                    }
+                }
+            }
+        }
+        if (chunker.size() > 0) {
+            writeChunk(chunker, chunkDigest, manifest);
+            count++;
+        }
+        String hash = ObjectId.toHex(fileDigest.digest());
+        byte[] data = bytes.toByteArray();
+        ByteBuffer.wrap(data).putInt(count);
+        write(hash, CHUNKED, data);
+        return hash;
+    }
+
+    private void writeChunk(Chunker chunker, MessageDigest chunkDigest, DataOutputStream manifest) throws IOException {
+        chunkDigest.update(chunker.chunk(), 0, chunker.size());
+        String hash = ObjectId.toHex(chunkDigest.digest());
+        write(hash, BLOB, chunker.chunk(), chunker.size());
+        manifest.writeUTF(hash);
+        manifest.writeInt(chunker.size());
+        chunker.next();
+    }
+
+    /* Hashes of the chunks in a manifest, in file order.*/
+    private static List<String> chunks(byte[] manifest) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifest));
+        int count = in.readInt();
+        ArrayList<String> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(in.readUTF());
+            in.readInt();
+        }
+        return chunks;
+    }
+
+    /* The chunks of a file stored as CHUNKED, or null for any other object.*/
+    public List<String> chunksOf(String hash) throws IOException {
+        if (typeOf(hash) != CHUNKED) return null;
+        return chunks(readEntry(hash)[1]);
+    }
+
+    public ObjectCache getCache() {
+        return cache;
+    }
+
+    /* Returns the content of the object, or null when it is not stored. Small blobs are kept in
+    * the cache; the returned array must not be modified.*/
+    public byte[] read(String hash) throws IOException {
+        Object cached = cache.get(hash);
+        if (cached instanceof byte[]) return (byte[]) cached;
+        byte[][] entry = readEntry(hash);
+        if (entry == null) return null;
+        byte[] data = entry[0][0] == CHUNKED ? assemble(entry[1]) : entry[1];
+        if (entry[0][0] == BLOB || entry[0][0] == CHUNKED) cache.put(hash, data, data.length + 64);
+        return data;
+    }
+
+    private byte[] assemble(byte[] manifest) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String chunk: chunks(manifest)) {
+            byte[][] entry = readEntry(chunk);
+            if (entry == null) throw new FileNotFoundException("Chunk " + chunk + " does not exist");
+            out.write(entry[1]);
+        }
+        return out.toByteArray();
+    }
+
+    /* Like read, but bypasses the cache. Used for commits, which are cached once parsed.*/
+    byte[] readUncached(String hash) throws IOException {
+        byte[][] entry = readEntry(hash);
+        return entry == null ? null : entry[1];
+    }
+
+    /* Returns {{type}, content} of the object, or null when it is not stored. A chunked file's
+    * content is its manifest.*/
+    byte[][] readEntry(String hash) throws IOException {
+        byte[][] entry = readStored(hash);
+        if (entry != null) {
+            Stats.count(Stats.Counter.OBJECTS_READ, 1);
+            Stats.count(Stats.Counter.BYTES_READ, entry[1].length);
+        }
+        return entry;
+    }
+
+    private byte[][] readStored(String hash) throws IOException {
+        for (Pack p: getPacks()) {
+            long offset = p.index.offset(hash);
+            if (offset >= 0) return p.read(offset);
+        }
+        File loose = looseFile(hash);
+        if (loose.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(loose))) {
+                int type = in.read();
+                InputStream content = in.read() == DEFLATED ? new InflaterInputStream(in) : in;
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                copy(content, out);
+                return new byte[][]{{(byte) type}, out.toByteArray()};
+            }
+        }
+        return null;
+    }
+
+    public InputStream openStream(String hash) throws IOException {
+        if (typeOf(hash) == CHUNKED) {
+            //Opens each chunk once the previous one has been read
+            Iterator<String> chunks = chunks(readEntry(hash)[1]).iterator();
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                public boolean hasMoreElements() {
+                    return chunks.hasNext();
+                }
+
+                public InputStream nextElement() {
+                    try {
+                        return openStream(chunks.next());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        for (Pack p: getPacks()) {
+            long offset = p.index.offset(hash);
+            if (offset >= 0) return new ByteArrayInputStream(p.read(offset)[1]);
+        }
+        File loose = looseFile(hash);
+        if (loose.exists()) return openLoose(loose);
+        throw new FileNotFoundException("Object " + hash + " does not exist");
+    }
+
+    /* Writes the object's content to dest, replacing it if it exists. Chunks stored loose and
+    * uncompressed are copied with transferTo, without passing through the heap.*/
+    public void copyTo(String hash, File dest) throws IOException {
+        if (typeOf(hash) != CHUNKED) {
+            try (InputStream in = openStream(hash)) {
+                long n = Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Stats.count(Stats.Counter.OBJECTS_READ, 1);
+                Stats.count(Stats.Counter.BYTES_READ, n);
+            }
+            return;
+        }
+        try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (String chunk: chunks(readEntry(hash)[1])) {
+                File loose = looseFile(chunk);
+                if (!isPacked(chunk) && loose.exists()) {
+                    try (FileChannel in = FileChannel.open(loose.toPath(), StandardOpenOption.READ)) {
+                        ByteBuffer header = ByteBuffer.allocate(2);
+                        in.read(header, 0);
+                        if (header.get(1) == STORED) {
+                            for (long position = 2; position < in.size(); ) {
+                                position += in.transferTo(position, in.size() - position, out);
+                            }
+                            Stats.count(Stats.Counter.OBJECTS_READ, 1);
+                            Stats.count(Stats.Counter.BYTES_READ, in.size() - 2);
+                            continue;
+                        }
+                    }
+                }
+                byte[][] entry = readEntry(chunk);
+                if (entry == null) throw new FileNotFoundException("Chunk " + chunk + " does not exist");
+                ByteBuffer data = ByteBuffer.wrap(entry[1]);
+                while (data.hasRemaining()) out.write(data);
+            }
+        }
+    }
+
+    private InputStream openLoose(File f) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        in.read(); //type
+        if (in.read() == DEFLATED) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    private static void moveInto(File tmp, File dest) {
+        //Another writer may have stored the same object in the meantime; the content is identical
+        if (!tmp.renameTo(dest)) {
+            tmp.delete();
+        }
+    }
+
+    private synchronized List<Pack> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            File[] files = new File(PACK_LOCATION).listFiles();
+            if (files != null) {
+                for (File f: files) {
+                    if (f.getName().endsWith(".idx")) {
+                        try {
+                            packs.add(new Pack(f));
+                        } catch (IOException e) {
+                            System.out.println(e);
+                        }
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /* Hashes of every loose object.*/
+    List<String> looseObjects() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        ArrayList<String> hashes = new ArrayList<>();
+        File[] dirs = new File(OBJECTS_LOCATION).listFiles();
+        if (dirs == null) return hashes;
+        for (File dir: dirs) {
+            if (!dir.isDirectory() || dir.getName().length() != 2) continue;
+            for (File f: dir.listFiles()) {
+                if (!f.getName().endsWith(".tmp")) hashes.add(dir.getName() + f.getName());
+            }
+        }
+        return hashes;
+    }
+
+    /* Hashes of every packed object.*/
+    List<String> packedObjects() {
+        ArrayList<String> hashes = new ArrayList<>();
+        for (Pack p: getPacks()) {
+            for (int i = 0; i < p.index.size(); i++) hashes.add(p.index.nameAt(i));
+        }
+        return hashes;
+    }
+
+    /* When the object was stored: the modification time of its loose file, or of the pack holding it.*/
+    long storedTime(String hash) {
+        File loose = looseFile(hash);
+        if (loose.exists()) return loose.lastModified();
+        for (Pack p: getPacks()) {
+            if (p.index.contains(hash)) return p.packFile.lastModified();
+        }
+        return 0;
+    }
+
+    boolean isPacked(String hash) {
+        for (Pack p: getPacks()) {
+            if (p.index.contains(hash)) return true;
+        }
+        return false;
+    }
+
+    /* Deletes the loose copy of an object. Its directory goes too once it is empty.*/
+    void deleteLoose(String hash) {
+        File tmp = staged.remove(hash);
+        if (tmp != null) tmp.delete();
+        File loose = loosePath(hash);
+        if (loose.delete()) loose.getParentFile().delete(); //Only succeeds when empty
+    }
+
+    int typeOf(String hash) throws IOException {
+        for (Pack p: getPacks()) {
+            long offset = p.index.offset(hash);
+            if (offset >= 0) return p.typeAt(offset);
+        }
+        File loose = looseFile(hash);
+        if (loose.exists()) {
+            try (InputStream in = new FileInputStream(loose)) {
+                return in.read();
+            }
+        }
+        return -1;
+    }
+
+    /* Packs every object into one new pack file. Versions of the same file are found through the
+    * commits: each version of a path is stored as a delta against the next newer version, so the
+    * most recent content is always the cheapest to read. Replaced packs and loose objects are removed.*/
+    public void repack() throws IOException {
+        repack(hash -> true);
+    }
+
+    /* Packs the objects keep accepts; packed objects it rejects are dropped with their old pack.*/
+    void repack(Predicate<String> keep) throws IOException {
+        TreeSet<String> all = new TreeSet<>(looseObjects());
+        all.addAll(packedObjects());
+        all.removeIf(keep.negate());
+        if (all.isEmpty()) {
+            System.out.println("Nothing to pack");
+            return;
+        }
+        HashMap<String, Integer> types = new HashMap<>();
+        ArrayList<Commit> commits = new ArrayList<>();
+        for (String hash: all) {
+            int type = typeOf(hash);
+            types.put(hash, type);
+            if (type == COMMIT) commits.add(Commit.deserializeCommit(hash));
+        }
+        commits.sort((a, b) -> b.getDate().compareTo(a.getDate()));
+        HashMap<String, String> deltaBase = new HashMap<>();
+        HashMap<String, String> newerVersion = new HashMap<>(); //Per path, the last version seen walking back in time
+        for (Commit c: commits) {
+            for (Map.Entry<String, String> e: c.getStagedFiles().entrySet()) {
+                String hash = e.getValue();
+                String newer = newerVersion.put(e.getKey(), hash);
+                if (newer == null || newer.equals(hash) || deltaBase.containsKey(hash) || !all.contains(newer)) continue;
+                //A delta takes its base's type: a version stored whole and one stored as chunks can not be paired
+                if (!Objects.equals(types.get(hash), types.get(newer))) continue;
+                if (chainDepth(newer, deltaBase, hash) < MAX_DELTA_DEPTH) deltaBase.put(hash, newer);
+            }
+        }
+
+        File packDir = new File(PACK_LOCATION);
+        packDir.mkdirs();
+        File tmpPack = File.createTempFile("pack", ".tmp", packDir);
+        HashMap<String, Long> offsets = new HashMap<>();
+        int[] deltas = {0};
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPack)), md)) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(PACK_MAGIC);
+            data.writeInt(PACK_VERSION);
+            data.writeInt(all.size());
+            for (String hash: all) {
+                writeEntry(hash, types, deltaBase, offsets, out, deltas);
+            }
+            data.flush();
+            out.write(md.digest());
+        }
+        String packName = "pack-" + packId(all);
+        File packFile = new File(packDir, packName + ".pack");
+        File indexFile = new File(packDir, packName + ".idx");
+        //The pack is in place and on disk before its index makes it visible
+        Durability.sync(tmpPack);
+        Files.move(tmpPack.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        PackIndex.write(indexFile, offsets);
+
+        List<Pack> old = getPacks();
+        packs = null;
+        for (Pack p: old) {
+            p.close();
+            if (!p.indexFile.equals(indexFile)) {
+                p.indexFile.delete();
+                p.packFile.delete();
+            }
+        }
+        for (String hash: looseObjects()) {
+            if (offsets.containsKey(hash)) looseFile(hash).delete();
+        }
+        File[] dirs = new File(OBJECTS_LOCATION).listFiles();
+        if (dirs != null) {
+            for (File dir: dirs) {
+                if (dir.isDirectory() && dir.getName().length() == 2) dir.delete(); //Only succeeds when empty
+            }
+        }
+        System.out.println("Packed " + all.size() + " objects (" + deltas[0] + " as deltas) into " + packFile.getName());
+    }
+
+    private static String packId(Collection<String> hashes) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String h: hashes) md.update(h.getBytes("UTF-8"));
+            return ObjectId.toHex(md.digest());
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /* Length of the delta chain that would form if start became a base, or MAX_DELTA_DEPTH
+    * when the chain would loop back to target.*/
+    private static int chainDepth(String start, HashMap<String, String> deltaBase, String target) {
+        int depth = 0;
+        for (String h = start; h != null; h = deltaBase.get(h)) {
+            if (h.equals(target)) return MAX_DELTA_DEPTH;
+            depth++;
+        }
+        return depth;
+    }
+
+    /* Writes the object after its delta base, so that bases always precede their deltas.*/
+    private void writeEntry(String hash, HashMap<String, Integer> types, HashMap<String, String> deltaBase,
+                            HashMap<String, Long> offsets, CountingOutputStream out, int[] deltas) throws IOException {
+        if (offsets.containsKey(hash)) return;
+        String base = deltaBase.get(hash);
+        if (base != null) writeEntry(base, types, deltaBase, offsets, out, deltas);
+        //Raw contents: a chunked file is packed as its manifest
+        byte[] data = readEntry(hash)[1];
+        byte[] delta = null;
+        if (base != null) {
+            byte[] baseData = readEntry(base)[1];
+            delta = Delta.create(baseData, data, data.length / 2);
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        long offset = out.count;
+        byte[] compressed;
+        if (delta != null) {
+            header.write(DELTA);
+            Delta.writeVarint(header, delta.length);
+            Delta.writeVarint(header, offset - offsets.get(base));
+            compressed = deflate(delta);
+            deltas[0]++;
+        } else {
+            header.write(types.get(hash));
+            Delta.writeVarint(header, data.length);
+            compressed = deflate(data);
+        }
+        Delta.writeVarint(header, compressed.length);
+        header.writeTo(out);
+        out.write(compressed);
+        offsets.put(hash, offset);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        return deflate(data, data.length);
+    }
+
+    private static byte[] deflate(byte[] data, int length) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] result = new byte[size];
+        try {
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int read = inflater.inflate(result, n, size - n);
+                //No more input to make progress with: the entry was cut short
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("truncated object");
+                n += read;
+            }
+            if (n != size) throw new IOException("truncated object");
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+        private final MessageDigest md;
+
+        CountingOutputStream(OutputStream out, MessageDigest md) {
+            super(out);
+            this.md = md;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            md.update((byte) b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            md.update(b, off, len);
+            count += len;
+        }
+    }
+
+    /* A pack file, its mapped index and a channel kept open for reading entries.*/
+    private static class Pack {
+        final File packFile;
+        final File indexFile;
+        final PackIndex index;
+        private FileChannel channel;
+
+        Pack(File indexFile) throws IOException {
+            this.indexFile = indexFile;
+            String name = indexFile.getName();
+            this.packFile = new File(indexFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+            if (PackIndex.version(indexFile) == 1) {
+                upgradeIndex(indexFile);
+            }
+            PackIndex index = PackIndex.open(indexFile);
+            if (!index.isCurrentVersion() && index.hasFullIds()) {
+                //Names written out as characters: rewritten as binary ids
+                PackIndex.write(indexFile, index.offsets());
+                index = PackIndex.open(indexFile);
+            }
+            this.index = index;
+        }
+
+        /* Rewrites an index from the first pack format, a list of (hash, offset) pairs, in the mapped format.*/
+        private static void upgradeIndex(File indexFile) throws IOException {
+            HashMap<String, Long> offsets = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() != PACK_INDEX_MAGIC || in.readInt() != 1) {
+                    throw new IOException("Unknown pack index format: " + indexFile);
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    offsets.put(in.readUTF(), in.readLong());
+                }
+            }
+            PackIndex.write(indexFile, offsets);
+        }
+
+        synchronized void close() throws IOException {
+            if (channel != null) channel.close();
+            channel = null;
+        }
+
+        /* Returns {{type}, content} of the entry at offset, resolving delta chains.*/
+        byte[][] read(long offset) throws IOException {
+            FileChannel c;
+            synchronized (this) {
+                if (channel == null) {
+                    channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+                }
+                c = channel;
+            }
+            //Positional reads do not move the channel's position, so threads can share it
+            return read(c, offset);
+        }
+
+        /* Type of the entry at offset, found from the headers of its delta chain alone.*/
+        int typeAt(long offset) throws IOException {
+            FileChannel c;
+            synchronized (this) {
+                if (channel == null) {
+                    channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+                }
+                c = channel;
+            }
+            while (true) {
+                ByteBuffer header = ByteBuffer.allocate(16);
+                c.read(header, offset);
+                header.flip();
+                int type = header.get();
+                if (type != DELTA) return type;
+                readVarint(header);
+                offset -= readVarint(header);
+            }
+        }
+
+        private byte[][] read(FileChannel channel, long offset) throws IOException {
+            //Header: type, up to three varints of at most five bytes each
+            ByteBuffer header = ByteBuffer.allocate(16);
+            channel.read(header, offset);
+            header.flip();
+            int type = header.get();
+            int size = readVarint(header);
+            long baseOffset = type == DELTA ? offset - readVarint(header) : -1;
+            byte[] compressed = new byte[readVarint(header)];
+            ByteBuffer body = ByteBuffer.wrap(compressed);
+            long position = offset + header.position();
+            while (body.hasRemaining()) {
+                int n = channel.read(body, position);
+                if (n < 0) throw new EOFException("Truncated pack " + packFile);
+                position += n;
+            }
+            byte[] data = inflate(compressed, size);
+            if (type != DELTA) return new byte[][]{{(byte) type}, data};
+            byte[][] base = read(channel, baseOffset);
+            return new byte[][]{base[0], Delta.apply(base[1], data)};
+        }
+
+        private static int readVarint(ByteBuffer buffer) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buffer.get() & 0xff;
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* The index next to a pack file, read through a memory mapping. Object ids are stored as their
+* 20 bytes in sorted order, preceded by a 256-entry fanout table in which entry b counts the ids
+* whose first byte is at most b. A lookup narrows the search to one fanout bucket and binary
+* searches it, comparing the hex name it is given with the bytes in place, without any reads
+* beyond the initial mapping.
+*
+* Format: "JVPI", version, count, fanout[256], ids[count][20], offsets[count] (longs)
+*
+* Version 2 stored names as 40 zero-padded ASCII characters and fanned out on the first
+* character. It is still read, for packs of repositories whose objects were named before full
+* SHA-1 ids (see LegacyMigration), and rewritten as version 3 once every name is a full id.*/
+public class PackIndex {
+    static final int MAGIC = 0x4a565049; //"JVPI"
+    static final int VERSION = 3;
+    static final int NAMES_VERSION = 2;
+    private static final int NAME_LENGTH = 40; //Version 2 records
+    private static final int FANOUT_START = 12;
+    private static final int NAMES_START = FANOUT_START + 256 * 4;
+    private final MappedByteBuffer buffer;
+    private final boolean binary; //Version 3
+    private final int recordLength;
+    private final int count;
+    private final int offsetsStart;
+
+    private PackIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        int version = buffer.getInt(4);
+        if (buffer.getInt(0) != MAGIC || (version != VERSION && version != NAMES_VERSION)) {
+            throw new IOException("Unknown pack index format");
+        }
+        this.binary = version == VERSION;
+        this.recordLength = binary ? ObjectId.LENGTH : NAME_LENGTH;
+        this.count = buffer.getInt(8);
+        this.offsetsStart = NAMES_START + count * recordLength;
+    }
+
+    public static PackIndex open(File f) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(f, "r").getChannel()) {
+            //The mapping stays valid after the channel is closed
+            return new PackIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /* The version the file's header gives, or -1 when it is not a pack index.*/
+    static int version(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == MAGIC ? in.readInt() : -1;
+        }
+    }
+
+    /* Writes the index in the current format when every name is a full id, and otherwise in
+    * version 2, for a repository that still has to be converted.*/
+    public static void write(File f, Map<String, Long> offsets) throws IOException {
+        TreeMap<String, Long> sorted = new TreeMap<>(offsets);
+        boolean binary = true;
+        for (String name: sorted.keySet()) {
+            if (name.length() > NAME_LENGTH || name.isEmpty()) throw new IOException("Invalid object name: " + name);
+            if (!ObjectId.isHex(name)) binary = false;
+        }
+        int[] fanout = new int[256];
+        for (String name: sorted.keySet()) {
+            fanout[binary ? ObjectId.digit(name.charAt(0)) << 4 | ObjectId.digit(name.charAt(1)) : name.charAt(0) & 0xff]++;
+        }
+        for (int i = 1; i < 256; i++) fanout[i] += fanout[i - 1];
+        File tmp = new File(f.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(binary ? VERSION : NAMES_VERSION);
+            out.writeInt(sorted.size());
+            for (int n: fanout) out.writeInt(n);
+            byte[] record = new byte[NAME_LENGTH];
+            for (String name: sorted.keySet()) {
+                if (binary) {
+                    out.write(ObjectId.fromHex(name).toBytes());
+                    continue;
+                }
+                byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(bytes, 0, record, 0, bytes.length);
+                for (int i = bytes.length; i < NAME_LENGTH; i++) record[i] = 0;
+                out.write(record);
+            }
+            for (Long offset: sorted.values()) out.writeLong(offset);
+        }
+        Durability.replace(tmp, f);
+    }
+
+    /* Every name and offset, to rewrite the index in another version.*/
+    HashMap<String, Long> offsets() {
+        HashMap<String, Long> offsets = new HashMap<>();
+        for (int i = 0; i < count; i++) offsets.put(nameAt(i), buffer.getLong(offsetsStart + i * 8));
+        return offsets;
+    }
+
+    /* Whether every name is a full id, so the index can be written in the current version.*/
+    boolean hasFullIds() {
+        if (binary) return true;
+        for (int i = 0; i < count; i++) {
+            if (!ObjectId.isHex(nameAt(i))) return false;
+        }
+        return true;
+    }
+
+    boolean isCurrentVersion() {
+        return binary;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /* Position of the name in the sorted table, or -1.*/
+    private int position(String hash) {
+        if (binary ? !ObjectId.isHex(hash) : hash.isEmpty() || hash.length() > NAME_LENGTH) return -1;
+        int first = binary ? ObjectId.digit(hash.charAt(0)) << 4 | ObjectId.digit(hash.charAt(1)) : hash.charAt(0) & 0xff;
+        int low = first == 0 ? 0 : buffer.getInt(FANOUT_START + (first - 1) * 4);
+        int high = buffer.getInt(FANOUT_START + first * 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, hash);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /* Compares the name at position with a name or the start of one, which counts as lower than
+    * every name it starts.*/
+    private int compare(int position, String hash) {
+        int base = NAMES_START + position * recordLength;
+        if (binary) {
+            //Digit by digit against the bytes, high half first
+            for (int i = 0; i < ObjectId.HEX_LENGTH; i++) {
+                if (i >= hash.length()) return 1;
+                int b = buffer.get(base + (i >> 1)) & 0xff;
+                int a = (i & 1) == 0 ? b >>> 4 : b & 0xf;
+                int d = ObjectId.digit(hash.charAt(i));
+                if (a != d) return a - d;
+            }
+            return 0;
+        }
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            int a = buffer.get(base + i) & 0xff;
+            int b = i < hash.length() ? hash.charAt(i) & 0xff : 0;
+            if (a != b) return a - b;
+        }
+        return 0;
+    }
+
+    public boolean contains(String hash) {
+        return position(hash) >= 0;
+    }
+
+    /* Offset of the object in the pack, or -1 when the pack does not contain it.*/
+    public long offset(String hash) {
+        int p = position(hash);
+        return p < 0 ? -1 : buffer.getLong(offsetsStart + p * 8);
+    }
+
+    /* Adds every name starting with prefix to matches: a binary search for the first name not
+    * below prefix, then a scan while names still start with it.*/
+    public void findPrefix(String prefix, Collection<String> matches) {
+        if (prefix.isEmpty() || prefix.length() > NAME_LENGTH) return;
+        if (binary && !ObjectId.isHexPrefix(prefix)) return;
+        int first;
+        int last;
+        if (!binary) {
+            first = last = prefix.charAt(0) & 0xff;
+        } else if (prefix.length() == 1) {
+            //Every byte starting with the digit
+            first = ObjectId.digit(prefix.charAt(0)) << 4;
+            last = first | 0xf;
+        } else {
+            first = last = ObjectId.digit(prefix.charAt(0)) << 4 | ObjectId.digit(prefix.charAt(1));
+        }
+        int low = first == 0 ? 0 : buffer.getInt(FANOUT_START + (first - 1) * 4);
+        int high = buffer.getInt(FANOUT_START + last * 4);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, prefix) < 0) low = mid + 1;
+            else high = mid;
+        }
+        for (int i = low; i < count; i++) {
+            String name = nameAt(i);
+            if (!name.startsWith(prefix)) break;
+            matches.add(name);
+        }
+    }
+
+    public String nameAt(int position) {
+        int base = NAMES_START + position * recordLength;
+        if (binary) return ObjectId.toHex(buffer, base);
+        StringBuilder name = new StringBuilder(NAME_LENGTH);
+        for (int i = 0; i < NAME_LENGTH; i++) {
+            byte b = buffer.get(base + i);
+            if (b == 0) break;
+            name.append((char) b);
+        }
+        return name.toString();
+    }
+}
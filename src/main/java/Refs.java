@@ -0,0 +1,116 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/* Small named pointers to commits (branch heads, HEAD), each stored as a
+* one-line text file so that updating one of them never touches the others.*/
+public class Refs {
+    private static final String REFS_LOCATION = ".javavc/refs";
+
+    public static final String HEADS = "heads";
+    public static final String REMOTES = "remotes"; //One namespace per remote below it, e.g. remotes/origin
+
+    /* Reads every ref in the given namespace. An empty ref file stands for a ref with no commit yet.*/
+    public static HashMap<String, String> readAll(String namespace) {
+        HashMap<String, String> refs = new HashMap<>();
+        File dir = new File(REFS_LOCATION + "/" + namespace);
+        File[] files = dir.listFiles();
+        if (files == null) return refs;
+        for (File f: files) {
+            if (f.isFile() && !f.getName().endsWith(".tmp")) {
+                refs.put(f.getName(), readFile(f));
+            }
+        }
+        return refs;
+    }
+
+    /* Every remote-tracking ref, keyed by remote and branch name ("origin/master").*/
+    public static HashMap<String, String> readRemotes() {
+        HashMap<String, String> refs = new HashMap<>();
+        File[] remotes = new File(REFS_LOCATION + "/" + REMOTES).listFiles();
+        if (remotes == null) return refs;
+        for (File remote: remotes) {
+            if (!remote.isDirectory()) continue;
+            for (Map.Entry<String, String> ref: readAll(REMOTES + "/" + remote.getName()).entrySet()) {
+                refs.put(remote.getName() + "/" + ref.getKey(), ref.getValue());
+            }
+        }
+        return refs;
+    }
+
+    public static String read(String namespace, String name) {
+        return readFile(new File(REFS_LOCATION + "/" + namespace + "/" + name));
+    }
+
+    public static void write(String namespace, String name, String hash) {
+        writeFile(new File(REFS_LOCATION + "/" + namespace + "/" + name), hash);
+    }
+
+    public static void delete(String namespace, String name) {
+        new File(REFS_LOCATION + "/" + namespace + "/" + name).delete();
+    }
+
+    /* Writes only the refs that differ between the state that was loaded and the current one, each
+    * only if it still holds what was loaded (see compareAndSet).*/
+    public static void sync(String namespace, HashMap<String, String> loaded, HashMap<String, String> current) {
+        for (String name: current.keySet()) {
+            String hash = current.get(name);
+            String old = loaded.get(name);
+            if (!loaded.containsKey(name) || (old == null ? hash != null : !old.equals(hash))) {
+                compareAndSet(new File(REFS_LOCATION + "/" + namespace + "/" + name), old, hash);
+            }
+        }
+        for (String name: loaded.keySet()) {
+            if (!current.containsKey(name)) {
+                compareAndDelete(new File(REFS_LOCATION + "/" + namespace + "/" + name), loaded.get(name));
+            }
+        }
+    }
+
+    /* Replaces the value of a ref file only if it still is expected (null for a missing or empty
+    * file). Writers hold the repository lock from loading a ref to writing it, so this only fails
+    * when something moved the ref without it; the ref is then left alone and reported.*/
+    static boolean compareAndSet(File f, String expected, String value) {
+        if (!Objects.equals(readFile(f), expected)) {
+            System.out.println(f.getPath() + " was changed by another command, not updating it");
+            return false;
+        }
+        writeFile(f, value);
+        return true;
+    }
+
+    /* Deletes the ref file only if it still is expected, like compareAndSet.*/
+    static boolean compareAndDelete(File f, String expected) {
+        if (!Objects.equals(readFile(f), expected)) {
+            System.out.println(f.getPath() + " was changed by another command, not deleting it");
+            return false;
+        }
+        f.delete();
+        return true;
+    }
+
+    /* Returns the trimmed contents of a ref file, or null when the file is missing or empty.*/
+    static String readFile(File f) {
+        try {
+            String s = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim();
+            return s.equals("") ? null : s;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /* Replaces the file through a temporary file and a rename, so readers never see half a ref.*/
+    static void writeFile(File f, String value) {
+        f.getParentFile().mkdirs();
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), ((value == null ? "" : value) + "\n").getBytes(StandardCharsets.UTF_8));
+            Durability.replace(tmp, f);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.util.*;
+
+/* Pairs paths that went away with paths that appeared by the similarity of their content, to find
+* renames and copies. Files with the same blob are paired first, by hash alone. The others are
+* read once each and reduced to the set of hashes of their lines; similarity is the Jaccard index
+* of two such sets, the share of distinct lines they have in common.
+*
+* Comparing every added file with every removed one would cost adds x removes, so each file also
+* gets a MinHash signature: for SIGNATURE hash functions, the smallest value any of its lines hashes
+* to. Two files agree on one of those values with a probability equal to their similarity. The
+* signature is cut into BANDS bands of ROWS values and files are put in a bucket per band, so only
+* files that agree on a whole band (a file at 50% similarity does on at least one band with a
+* probability of 93%) are compared. Candidates are then scored exactly and paired best first.
+*
+* Only files of similar size can reach the threshold, so pairs whose line counts are too far
+* apart are not scored at all.*/
+public class Renames {
+    private static final int BANDS = 20;
+    private static final int ROWS = 3;
+    private static final int SIGNATURE = BANDS * ROWS;
+    private static final int[] SEEDS = new int[SIGNATURE];
+
+    static {
+        for (int i = 0; i < SIGNATURE; i++) SEEDS[i] = mix(i + 1, 0x5bd1e995);
+    }
+
+    /* Reads the content of a file given by path and blob hash.*/
+    public interface Content {
+        byte[] read(String path, String hash) throws IOException;
+    }
+
+    /* A path found again under another name: renamed, or copied when the source is still there.*/
+    public static class Pair {
+        final String from;
+        final String to;
+        final String fromHash;
+        final String toHash;
+        final int similarity; //Percent
+        final boolean copy;
+
+        Pair(String from, String to, String fromHash, String toHash, int similarity, boolean copy) {
+            this.from = from;
+            this.to = to;
+            this.fromHash = fromHash;
+            this.toHash = toHash;
+            this.similarity = similarity;
+            this.copy = copy;
+        }
+
+        /* The extended header lines of a unified diff for the pair.*/
+        String header() {
+            String kind = copy ? "copy" : "rename";
+            return "similarity index " + similarity + "%\n" + kind + " from " + from + "\n" + kind + " to " + to + "\n";
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + (similarity < 100 ? " (" + similarity + "%)" : "");
+        }
+    }
+
+    /* A file reduced to what the comparison needs.*/
+    private static class Sketch {
+        final String path;
+        final String hash;
+        final int[] lines; //Distinct line hashes, sorted
+        final int[] signature;
+
+        Sketch(String path, String hash, int[] lines) {
+            this.path = path;
+            this.hash = hash;
+            this.lines = lines;
+            this.signature = new int[SIGNATURE];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            for (int line: lines) {
+                for (int i = 0; i < SIGNATURE; i++) {
+                    int h = mix(line, SEEDS[i]);
+                    if (h < signature[i]) signature[i] = h;
+                }
+            }
+        }
+
+        long band(int b) {
+            long key = b;
+            for (int i = b * ROWS; i < (b + 1) * ROWS; i++) key = key * 0x9E3779B97F4A7C15L + signature[i];
+            return key;
+        }
+    }
+
+    private final Content content;
+    private final int threshold;
+
+    /* threshold: the similarity, in percent, a pair needs.*/
+    public Renames(Content content, int threshold) {
+        this.content = content;
+        this.threshold = threshold;
+    }
+
+    /* The setting of key: false (default), true for renames, or copies for renames and copies.*/
+    static String mode(String key) {
+        String value = Config.get(key, "false");
+        if (!value.equals("true") && !value.equals("copies") && !value.equals("false")) {
+            System.out.println("Invalid value for " + key + ", using false");
+            return "false";
+        }
+        return value;
+    }
+
+    /* Finds where the removed paths went among the added ones (path to blob hash for both). Each
+    * removed path is renamed at most once. Unless copySources is null, added paths can also be
+    * copies of its paths, which stay where they are, or of a removed path that was already renamed.
+    * Returns the pairs found, in the order of the added paths.*/
+    public List<Pair> detect(Map<String, String> removed, Map<String, String> added, Map<String, String> copySources) throws IOException {
+        boolean copies = copySources != null;
+        TreeMap<String, Pair> found = new TreeMap<>();
+        HashSet<String> renamed = new HashSet<>();
+        //Same content: no need to read it
+        HashMap<String, List<String>> byHash = new HashMap<>();
+        for (String path: new TreeSet<>(removed.keySet())) byHash.computeIfAbsent(removed.get(path), h -> new ArrayList<>()).add(path);
+        for (String path: new TreeSet<>(added.keySet())) {
+            List<String> same = byHash.get(added.get(path));
+            if (same == null) continue;
+            for (String from: same) {
+                if (renamed.add(from)) {
+                    found.put(path, new Pair(from, path, removed.get(from), added.get(path), 100, false));
+                    break;
+                }
+            }
+            if (!found.containsKey(path) && copies) found.put(path, new Pair(same.get(0), path, removed.get(same.get(0)), added.get(path), 100, true));
+        }
+        if (copies) {
+            HashMap<String, String> sourceByHash = new HashMap<>();
+            for (String path: new TreeSet<>(copySources.keySet())) sourceByHash.putIfAbsent(copySources.get(path), path);
+            for (String path: added.keySet()) {
+                String from = sourceByHash.get(added.get(path));
+                if (from != null && !found.containsKey(path)) found.put(path, new Pair(from, path, copySources.get(from), added.get(path), 100, true));
+            }
+        }
+
+        //Similar content: sketch what is left and compare the candidates LSH turns up
+        ArrayList<Sketch> sources = new ArrayList<>();
+        for (Map.Entry<String, String> e: removed.entrySet()) {
+            if (!renamed.contains(e.getKey()) || copies) sources.add(sketch(e.getKey(), e.getValue()));
+        }
+        if (copies) {
+            for (Map.Entry<String, String> e: copySources.entrySet()) sources.add(sketch(e.getKey(), e.getValue()));
+        }
+        ArrayList<Sketch> targets = new ArrayList<>();
+        for (Map.Entry<String, String> e: added.entrySet()) {
+            if (!found.containsKey(e.getKey())) targets.add(sketch(e.getKey(), e.getValue()));
+        }
+        sources.removeIf(s -> s.lines.length == 0);
+        targets.removeIf(s -> s.lines.length == 0);
+        if (!sources.isEmpty() && !targets.isEmpty()) {
+            for (Pair p: similar(sources, targets, removed, renamed, copies)) found.put(p.to, p);
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    private List<Pair> similar(List<Sketch> sources, List<Sketch> targets, Map<String, String> removed,
+                               HashSet<String> renamed, boolean copies) {
+        ArrayList<HashMap<Long, List<Integer>>> buckets = new ArrayList<>();
+        for (int b = 0; b < BANDS; b++) {
+            HashMap<Long, List<Integer>> bucket = new HashMap<>();
+            for (int s = 0; s < sources.size(); s++) bucket.computeIfAbsent(sources.get(s).band(b), k -> new ArrayList<>()).add(s);
+            buckets.add(bucket);
+        }
+        ArrayList<int[]> scored = new ArrayList<>(); //Similarity, source, target
+        HashSet<Integer> candidates = new HashSet<>();
+        for (int t = 0; t < targets.size(); t++) {
+            Sketch target = targets.get(t);
+            candidates.clear();
+            for (int b = 0; b < BANDS; b++) {
+                List<Integer> bucket = buckets.get(b).get(target.band(b));
+                if (bucket != null) candidates.addAll(bucket);
+            }
+            for (int s: candidates) {
+                Sketch source = sources.get(s);
+                int small = Math.min(source.lines.length, target.lines.length);
+                int large = Math.max(source.lines.length, target.lines.length);
+                if (small * 100L < large * (long) threshold) continue; //Can not reach the threshold
+                int similarity = similarity(source.lines, target.lines);
+                if (similarity >= threshold) scored.add(new int[]{similarity, s, t});
+            }
+        }
+        //Best pairs first; between equals, the first paths
+        scored.sort((x, y) -> x[0] != y[0] ? y[0] - x[0]
+                : x[1] != y[1] ? sources.get(x[1]).path.compareTo(sources.get(y[1]).path)
+                : targets.get(x[2]).path.compareTo(targets.get(y[2]).path));
+        ArrayList<Pair> pairs = new ArrayList<>();
+        boolean[] paired = new boolean[targets.size()];
+        for (int[] score: scored) {
+            if (paired[score[2]]) continue;
+            Sketch source = sources.get(score[1]);
+            Sketch target = targets.get(score[2]);
+            boolean isRemoved = removed.containsKey(source.path);
+            if (isRemoved && renamed.add(source.path)) {
+                pairs.add(new Pair(source.path, target.path, source.hash, target.hash, score[0], false));
+            } else if (copies) {
+                pairs.add(new Pair(source.path, target.path, source.hash, target.hash, score[0], true));
+            } else {
+                continue;
+            }
+            paired[score[2]] = true;
+        }
+        return pairs;
+    }
+
+    private Sketch sketch(String path, String hash) throws IOException {
+        byte[] data = content.read(path, hash);
+        int[] lines = new int[16];
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length ? i > start : data[i] == '\n') {
+                if (count == lines.length) lines = Arrays.copyOf(lines, count * 2);
+                lines[count++] = lineHash(data, start, i);
+                start = i + 1;
+            }
+        }
+        lines = Arrays.copyOf(lines, count);
+        Arrays.sort(lines);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || lines[i] != lines[i - 1]) lines[distinct++] = lines[i];
+        }
+        return new Sketch(path, hash, Arrays.copyOf(lines, distinct));
+    }
+
+    /* Percent of the distinct lines of both that they share.*/
+    private static int similarity(int[] a, int[] b) {
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (int) (100L * common / (a.length + b.length - common));
+    }
+
+    private static int lineHash(byte[] data, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i++) h = (h ^ data[i]) * 0x01000193;
+        return h;
+    }
+
+    private static int mix(int x, int seed) {
+        int h = x * 0x9E3779B1 ^ seed;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
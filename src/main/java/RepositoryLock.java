@@ -0,0 +1,77 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* The writer lock of a repository, an operating system lock on .javavc/lock. A command that changes
+* the repository takes it before loading the refs and stage and keeps it until it has written them
+* back, so commands running at the same time each work from the state the one before them left.
+* Read-only commands (status, diff, log, blame) take no lock and never write the refs or stage;
+* they write the index and monitor state, which only remember what was found, when the lock happens
+* to be free. The lock goes away with the process holding it, so a command that crashed never
+* leaves the repository locked.*/
+public class RepositoryLock implements Closeable {
+    private static final String LOCK_LOCATION = ".javavc/lock";
+    private static RepositoryLock held; //Held by this process; commands of a server run one at a time
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private RepositoryLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /* Waits until the lock is free and takes it. Returns null when there is no repository yet, or
+    * when the lock is held in this process already.*/
+    public static synchronized RepositoryLock acquire() {
+        if (held != null || !new File(".javavc").isDirectory()) return null;
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(LOCK_LOCATION), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                System.err.println("Waiting for another command to finish in this repository");
+                lock = channel.lock();
+            }
+            held = new RepositoryLock(channel, lock);
+            return held;
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+    }
+
+    /* Takes the lock only if it is free right now, otherwise returns null.*/
+    public static synchronized RepositoryLock tryAcquire() {
+        if (held != null || !new File(".javavc").isDirectory()) return null;
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(LOCK_LOCATION), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                return null;
+            }
+            held = new RepositoryLock(channel, lock);
+            return held;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static synchronized boolean isHeld() {
+        return held != null;
+    }
+
+    @Override
+    public void close() {
+        synchronized (RepositoryLock.class) {
+            try {
+                lock.release();
+                channel.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            held = null;
+        }
+    }
+}
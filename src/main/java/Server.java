@@ -0,0 +1,191 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/* Long-running process that serves commands for the repository in its working directory over the
+* Unix domain socket .javavc/server.sock, so that they run without starting a JVM and with the
+* object cache, packs, commit graph and index already loaded. Commands run one at a time, in the
+* order they arrive.
+*
+* Anything that another process changes under .javavc (the index, config, commit graph or packs)
+* is noticed before the next command, and what was loaded from it is dropped. Refs and the staging
+* area are small and read again for every command anyway.
+*
+* Request: argument count, then every argument. Response: frames of a stream byte (OUT or ERR), a
+* length and that many bytes of output, ended by an END byte and the command's exit status.*/
+public class Server {
+    static final String SOCKET_LOCATION = ".javavc/server.sock";
+    static final int END = 0;
+    static final int OUT = 1;
+    static final int ERR = 2;
+    //What the server keeps loaded is read from these
+    private static final String[] WATCHED = {".javavc", ".javavc/index", ".javavc/config", ".javavc/commit-graph",
+            ".javavc/commit-graph.lookup", ".javavc/objects/pack"};
+    private final Object commandLock = new Object();
+    private ServerSocketChannel channel;
+    private Index index;
+    private List<String> fingerprint;
+    private volatile boolean stopping;
+
+    /* server: serves commands until server --stop is sent.*/
+    public static void run() {
+        if (!new File(".javavc").exists()) {
+            System.out.println("Not a javavc repository");
+            return;
+        }
+        File socket = new File(SOCKET_LOCATION);
+        if (socket.exists()) {
+            if (Client.send(new String[]{"server", "--ping"}) >= 0) {
+                System.out.println("A server is already running in this repository");
+                return;
+            }
+            socket.delete(); //Left behind by a server that did not stop cleanly
+        }
+        Server server = new Server();
+        try (ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.bind(UnixDomainSocketAddress.of(SOCKET_LOCATION));
+            server.channel = channel;
+            System.out.println("Serving " + JavaVC.cwd + ", stop with server --stop");
+            server.serve();
+        } catch (IOException e) {
+            System.out.println(e);
+        } finally {
+            socket.delete();
+        }
+    }
+
+    /* server --stop: asks the running server to exit.*/
+    public static void stop() {
+        if (Client.send(new String[]{"server", "--stop"}) < 0) System.out.println("No server is running");
+    }
+
+    private void serve() {
+        while (!stopping) {
+            SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (IOException e) {
+                if (!stopping) System.out.println(e);
+                return;
+            }
+            //Requests are read on their own thread, so a slow client does not hold up the others
+            new Thread(() -> handle(client), "javavc-client").start();
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (SocketChannel c = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)))) {
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+            int status = 1;
+            synchronized (commandLock) {
+                PrintStream stdout = System.out;
+                PrintStream stderr = System.err;
+                System.setOut(new PrintStream(new FrameOutputStream(out, OUT), false, "UTF-8"));
+                System.setErr(new PrintStream(new FrameOutputStream(out, ERR), false, "UTF-8"));
+                try {
+                    status = execute(args);
+                } catch (RuntimeException e) {
+                    System.out.println(e);
+                } finally {
+                    System.out.flush();
+                    System.err.flush();
+                    System.setOut(stdout);
+                    System.setErr(stderr);
+                }
+            }
+            out.writeByte(END);
+            out.writeInt(status);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println(e); //The client went away
+        }
+    }
+
+    /* Runs the command and returns its exit status.*/
+    private int execute(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("server")) {
+            if (args.length == 2 && args[1].equals("--stop")) {
+                stopping = true;
+                channel.close();
+            } else if (args.length != 2 || !args[1].equals("--ping")) {
+                System.out.println("A server is already running in this repository");
+            }
+            return 0;
+        }
+        if (args.length > 0 && (args[0].equals("monitor") || args[0].equals("upload-pack") || args[0].equals("receive-pack"))) {
+            System.out.println(args[0] + " runs on its own, not through the server");
+            return 1;
+        }
+        List<String> current = fingerprint();
+        if (index == null || !current.equals(fingerprint)) {
+            invalidate();
+        }
+        int status = JavaVC.run(args, index);
+        fingerprint = fingerprint();
+        return status;
+    }
+
+    /* Forgets everything read from .javavc, so the next command loads it again.*/
+    private void invalidate() {
+        ObjectStore.close();
+        CommitGraph.close();
+        Config.reload();
+        index = Index.load();
+    }
+
+    /* Size, modification time and file key (which changes when a file is replaced) of each
+    * watched file.*/
+    private static List<String> fingerprint() {
+        ArrayList<String> stats = new ArrayList<>();
+        for (String location: WATCHED) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(new File(location).toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                stats.add(attrs.size() + " " + attrs.lastModifiedTime().toMillis() + " " + Objects.toString(attrs.fileKey()));
+            } catch (IOException e) {
+                stats.add("-");
+            }
+        }
+        return stats;
+    }
+
+    /* Sends what a command prints to the client as frames of one stream.*/
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int stream;
+
+        FrameOutputStream(DataOutputStream out, int stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.writeByte(stream);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/* The patterns of a sparse checkout, one per line in .javavc/sparse-checkout. Only the tracked paths
+* they include are written to the working directory by checkout, reset and merge; the others are
+* recorded in the index as skip-worktree and left out of status, diff and add.
+*
+* A pattern is a path relative to the repository root in which * matches within one directory name,
+* ? one character of it and ** any number of directories. A pattern that matches a directory, or
+* ends with /, takes in everything below it. Patterns starting with ! exclude what they match; the
+* last pattern matching a path decides, and a path no pattern matches is excluded.*/
+public class Sparse {
+    static final String SPARSE_LOCATION = ".javavc/sparse-checkout";
+    private final List<String> patterns;
+    private final List<Pattern> compiled = new ArrayList<>();
+
+    public Sparse(List<String> patterns) {
+        this.patterns = patterns;
+        for (String p: patterns) compiled.add(compile(p.startsWith("!") ? p.substring(1) : p));
+    }
+
+    /* The sparse checkout of the repository, or null when every path is checked out.*/
+    public static Sparse load() {
+        File file = new File(SPARSE_LOCATION);
+        if (!file.exists()) return null;
+        try {
+            ArrayList<String> patterns = new ArrayList<>();
+            for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) patterns.add(line);
+            }
+            return new Sparse(patterns);
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+    }
+
+    public void save() throws IOException {
+        File tmp = new File(SPARSE_LOCATION + ".tmp");
+        StringBuilder text = new StringBuilder();
+        for (String p: patterns) text.append(p).append('\n');
+        Files.write(tmp.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        Durability.replace(tmp, new File(SPARSE_LOCATION));
+    }
+
+    /* Turns sparse checkout off: every path is checked out again.*/
+    public static void delete() {
+        new File(SPARSE_LOCATION).delete();
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /* Whether the path (a file, '/' between directories) is checked out.*/
+    public boolean includes(String path) {
+        for (int i = compiled.size() - 1; i >= 0; i--) {
+            if (matches(compiled.get(i), path)) return !patterns.get(i).startsWith("!");
+        }
+        return false;
+    }
+
+    /* Matches the path itself or any directory above it.*/
+    private static boolean matches(Pattern p, String path) {
+        if (p.matcher(path).matches()) return true;
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            if (p.matcher(path.substring(0, slash)).matches()) return true;
+        }
+        return false;
+    }
+
+    private static Pattern compile(String glob) {
+        while (glob.startsWith("/")) glob = glob.substring(1);
+        while (glob.endsWith("/")) glob = glob.substring(0, glob.length() - 1);
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                i++;
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                    i++;
+                    regex.append("(.*/)?"); //"**/" also matches no directory at all
+                } else {
+                    regex.append(".*");
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Counters and phase timings of the running command, printed to standard error by --stats.
+* Updated from the hashing and checkout threads, hence LongAdder. Times of phases that run on
+* several threads (hash, store, checkout) are summed over the threads, so they can exceed the
+* wall-clock time of the command.*/
+public class Stats {
+    enum Phase {
+        LOAD("load state"), SCAN("scan working tree"), HASH("hash files"), STORE("store objects"), COMMIT("write commit"),
+        CHECKOUT("write working tree"), MERGE("merge files"), SYNC("sync to disk"), SAVE("save state");
+
+        final String label;
+        final LongAdder nanos = new LongAdder();
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    enum Counter {
+        DIRECTORIES_LISTED("directories listed"), FILES_STATTED("files stat'd"), FILES_HASHED("files hashed"),
+        BYTES_HASHED("bytes hashed"), OBJECTS_READ("objects read"), BYTES_READ("bytes read"),
+        OBJECTS_WRITTEN("objects written"), BYTES_WRITTEN("bytes written"), FILES_SYNCED("files synced");
+
+        final String label;
+        final LongAdder count = new LongAdder();
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    /* Start time for time().*/
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /* Adds the time since start to the phase.*/
+    static void time(Phase phase, long start) {
+        phase.nanos.add(System.nanoTime() - start);
+    }
+
+    static void count(Counter counter, long n) {
+        counter.count.add(n);
+    }
+
+    /* Starts counting from zero, for the next command run by the server.*/
+    static void reset() {
+        for (Phase p: Phase.values()) p.nanos.reset();
+        for (Counter c: Counter.values()) c.count.reset();
+    }
+
+    static void print(PrintStream out, long totalNanos) {
+        out.printf("%-20s %10.1f ms%n", "total", totalNanos / 1e6);
+        for (Phase p: Phase.values()) {
+            long nanos = p.nanos.sum();
+            if (nanos > 0) out.printf("  %-18s %10.1f ms%n", p.label, nanos / 1e6);
+        }
+        for (Counter c: Counter.values()) {
+            out.printf("%-20s %10d%n", c.label, c.count.sum());
+        }
+        out.println(ObjectStore.open().getCache());
+    }
+}
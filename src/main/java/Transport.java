@@ -0,0 +1,410 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/* Moves history between two repositories on the same machine. The other repository is served by a
+* JavaVC process started in its directory, upload-pack for fetch and clone and receive-pack for
+* push, which stands in for a socket: the protocol runs over its standard input and output, and
+* anything it prints goes to standard error.
+*
+*   1. The serving side sends its current branch, its latest commit and its branch heads.
+*   2. push only: the branch, the head the pusher last saw and the new head, answered with ""
+*      or the reason for refusing.
+*   3. Negotiation: the side that will receive the objects (fetch) or send them (push) sends
+*      its own commits in batches, newest first, and the serving side answers with the ones it
+*      has. Ancestors of a commit both sides have are not sent, so only the commits near the
+*      tips are listed.
+*   4. fetch only: the heads wanted.
+*   5. The pack: the commits only one side has, parents first, each preceded by the trees,
+*      blobs and chunks the other side does not have yet, streamed as they are read.
+*   6. push only: "" once the branch was updated, or the reason for refusing.
+*
+* Pack: "JVPK", then per object its type, hash, length and content; a zero type ends it.*/
+public class Transport implements Closeable {
+    private static final int PACK_MAGIC = 0x4a56504b; //"JVPK"
+    private static final int FIRST_BATCH = 32;
+    private static final int MAX_BATCH = 1024;
+    private final Process process;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    String remoteBranch; //Current branch of the other repository
+    String remoteLatest;
+    final TreeMap<String, String> remoteBranches = new TreeMap<>();
+
+    private Transport(Process process) {
+        this.process = process;
+        this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+    }
+
+    /* Starts command (upload-pack or receive-pack) in the repository at path and reads its heads.*/
+    public static Transport connect(String path, String command) throws IOException {
+        if (!new File(path, ".javavc").isDirectory()) throw new FileNotFoundException(path + " is not a javavc repository");
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "JavaVC", command)
+                .directory(new File(path))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        Transport t = new Transport(process);
+        try {
+            t.remoteBranch = empty(t.in.readUTF());
+            t.remoteLatest = empty(t.in.readUTF());
+            int count = t.in.readInt();
+            for (int i = 0; i < count; i++) t.remoteBranches.put(t.in.readUTF(), empty(t.in.readUTF()));
+        } catch (IOException e) {
+            t.close();
+            throw e;
+        }
+        return t;
+    }
+
+    private static String empty(String s) {
+        return s.equals("") ? null : s;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            //The other side has exited already
+        }
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+
+    /* Fetches the wanted commits, and everything they need that is not stored here. Returns the
+    * number of objects received.*/
+    public int fetch(Collection<String> wants, Collection<String> localHeads) throws IOException {
+        if (wants.isEmpty()) {
+            out.writeInt(0); //No negotiation
+        } else {
+            negotiate(localHeads);
+        }
+        out.writeInt(wants.size());
+        for (String want: wants) out.writeUTF(want);
+        out.flush();
+        return receivePack(in);
+    }
+
+    /* Sends the commits of branch up to head that the other repository does not have, and has it
+    * move the branch from expected (null for a new branch) to head. Returns null on success,
+    * otherwise why it was refused.*/
+    public String push(String branch, String expected, String head) throws IOException {
+        out.writeUTF(branch);
+        out.writeUTF(expected == null ? "" : expected);
+        out.writeUTF(head);
+        out.flush();
+        String refused = in.readUTF();
+        if (!refused.equals("")) return refused;
+        CommitGraph graph = CommitGraph.open();
+        List<Integer> common = negotiate(Collections.singletonList(head));
+        sendPack(out, graph, graph.missing(Collections.singletonList(graph.find(head)), common), common);
+        out.flush();
+        return empty(in.readUTF());
+    }
+
+    /* Lists this repository's commits from heads, newest first, until the other side has answered
+    * for all of them or has them; returns the record numbers of the ones it has. Batches double in
+    * size, so a long history only the sender has takes few round trips.*/
+    private List<Integer> negotiate(Collection<String> heads) throws IOException {
+        CommitGraph graph = CommitGraph.open();
+        ArrayList<Integer> common = new ArrayList<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Collections.reverseOrder()); //Children before parents
+        boolean[] queued = new boolean[graph.size()];
+        for (String head: heads) {
+            int i = graph.find(head);
+            if (i >= 0 && !queued[i]) {
+                queued[i] = true;
+                queue.add(i);
+            }
+        }
+        int size = FIRST_BATCH;
+        while (!queue.isEmpty()) {
+            ArrayList<Integer> batch = new ArrayList<>();
+            while (!queue.isEmpty() && batch.size() < size) batch.add(queue.poll());
+            out.writeInt(batch.size());
+            for (int i: batch) out.writeUTF(graph.hashAt(i));
+            out.flush();
+            HashSet<String> has = new HashSet<>();
+            int count = in.readInt();
+            for (int k = 0; k < count; k++) has.add(in.readUTF());
+            for (int i: batch) {
+                if (has.contains(graph.hashAt(i))) {
+                    common.add(i);
+                    continue;
+                }
+                for (int p: new int[]{graph.parent(i), graph.mergeParent(i), graph.globalParent(i)}) {
+                    if (p >= 0 && !queued[p]) {
+                        queued[p] = true;
+                        queue.add(p);
+                    }
+                }
+            }
+            size = Math.min(size * 2, MAX_BATCH);
+        }
+        out.writeInt(0);
+        return common;
+    }
+
+    /* The serving side of negotiate: answers each batch with the commits stored here.*/
+    private static List<Integer> acknowledge(DataInputStream in, DataOutputStream out) throws IOException {
+        CommitGraph graph = CommitGraph.open();
+        ArrayList<Integer> common = new ArrayList<>();
+        int count;
+        while ((count = in.readInt()) > 0) {
+            ArrayList<String> has = new ArrayList<>();
+            for (int k = 0; k < count; k++) {
+                String hash = in.readUTF();
+                int i = graph.find(hash);
+                if (i >= 0) {
+                    has.add(hash);
+                    common.add(i);
+                }
+            }
+            out.writeInt(has.size());
+            for (String hash: has) out.writeUTF(hash);
+            out.flush();
+        }
+        return common;
+    }
+
+    private static void advertise(DataOutputStream out, String currentBranch, String latestCommit, Map<String, String> branches) throws IOException {
+        out.writeUTF(currentBranch == null ? "" : currentBranch);
+        out.writeUTF(latestCommit == null ? "" : latestCommit);
+        out.writeInt(branches.size());
+        for (Map.Entry<String, String> b: branches.entrySet()) {
+            out.writeUTF(b.getKey());
+            out.writeUTF(b.getValue() == null ? "" : b.getValue());
+        }
+        out.flush();
+    }
+
+    /* The protocol owns standard output; everything printed goes to standard error instead.*/
+    private static DataOutputStream protocolOutput() {
+        System.setOut(System.err);
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    }
+
+    private static DataInputStream protocolInput() {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+    }
+
+    /* upload-pack: serves fetch and clone from the repository in the working directory.*/
+    public static void uploadPack(String currentBranch, String latestCommit, Map<String, String> branches) {
+        DataOutputStream out = protocolOutput();
+        DataInputStream in = protocolInput();
+        try {
+            advertise(out, currentBranch, latestCommit, branches);
+            List<Integer> common = acknowledge(in, out);
+            CommitGraph graph = CommitGraph.open();
+            ArrayList<Integer> wants = new ArrayList<>();
+            int count = in.readInt();
+            for (int k = 0; k < count; k++) {
+                String want = in.readUTF();
+                int i = graph.find(want);
+                if (i < 0) throw new IOException("Commit " + want + " does not exist");
+                wants.add(i);
+            }
+            sendPack(out, graph, graph.missing(wants, common), common);
+            out.flush();
+        } catch (EOFException e) {
+            //The other side ended the exchange, e.g. as it has everything already
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* receive-pack: serves push into the repository in the working directory. The branch is only
+    * moved if nobody moved it since the pusher last fetched, it is not the checked out branch
+    * (its files would no longer match), and the new head descends from the old one.*/
+    public static void receivePack(String currentBranch, String latestCommit, HashMap<String, String> branches) {
+        DataOutputStream out = protocolOutput();
+        DataInputStream in = protocolInput();
+        try {
+            advertise(out, currentBranch, latestCommit, branches);
+            String branch = in.readUTF();
+            String expected = empty(in.readUTF());
+            String head = in.readUTF();
+            String refused = "";
+            if (!validBranchName(branch)) {
+                refused = "invalid branch name " + branch;
+            } else if (branch.equals(currentBranch)) {
+                refused = "branch " + branch + " is checked out in " + JavaVC.cwd;
+            } else if (!Objects.equals(branches.get(branch), expected)) {
+                refused = "branch " + branch + " has changed, fetch first";
+            }
+            out.writeUTF(refused);
+            out.flush();
+            if (!refused.equals("")) return;
+            acknowledge(in, out);
+            receivePack(in);
+            CommitGraph graph = CommitGraph.open();
+            int i = graph.find(head);
+            if (i < 0) {
+                refused = "commit " + head + " was not received";
+            } else if (expected != null && !graph.isAncestor(graph.find(expected), i)) {
+                refused = "not a fast-forward of " + branch + ", fetch and merge first";
+            } else {
+                branches.put(branch, head);
+            }
+            out.writeUTF(refused);
+            out.flush();
+        } catch (EOFException e) {
+            //The other side ended the exchange, e.g. as it has nothing to push
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* Branch names become file names under .javavc/refs.*/
+    static boolean validBranchName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && !name.contains("/") && !name.contains("\\");
+    }
+
+    /* Streams the commits (oldest first) with the objects they need. Everything below the trees of
+    * the common commits they build on is on the other side already and is left out.*/
+    private static void sendPack(DataOutputStream out, CommitGraph graph, List<Integer> commits, List<Integer> common) throws IOException {
+        ObjectStore objects = ObjectStore.open();
+        ObjectIdMap sent = new ObjectIdMap();
+        HashSet<Integer> sending = new HashSet<>(commits);
+        HashSet<Integer> boundary = new HashSet<>();
+        for (int c: commits) {
+            for (int p: new int[]{graph.parent(c), graph.mergeParent(c), graph.globalParent(c)}) {
+                if (p >= 0 && !sending.contains(p)) boundary.add(p);
+            }
+        }
+        for (int b: boundary) {
+            Commit c = Commit.deserializeCommit(graph.hashAt(b));
+            if (c != null) walk(c, sent, null, objects);
+        }
+        out.writeInt(PACK_MAGIC);
+        for (int i: commits) {
+            String hash = graph.hashAt(i);
+            Commit c = Commit.deserializeCommit(hash);
+            if (c == null) throw new IOException("Commit " + hash + " does not exist");
+            walk(c, sent, out, objects);
+            sendObject(out, objects, hash);
+        }
+        out.writeByte(0);
+    }
+
+    /* Adds the trees, blobs and chunks of the commit that are not in seen to it, and sends them when
+    * out is not null. A tree is sent after everything below it.*/
+    private static void walk(Commit c, ObjectIdMap seen, DataOutputStream out, ObjectStore objects) throws IOException {
+        if (c.getTreeHash() == null) {
+            for (String blob: c.getStagedFiles().values()) sendBlob(blob, seen, out, objects);
+            return;
+        }
+        walkTree(c.getTreeHash(), seen, out, objects);
+    }
+
+    private static void walkTree(String tree, ObjectIdMap seen, DataOutputStream out, ObjectStore objects) throws IOException {
+        if (!seen.add(tree)) return;
+        ArrayList<String> subtrees = new ArrayList<>();
+        ArrayList<String> files = new ArrayList<>();
+        Tree.read(tree).children(subtrees, files);
+        for (String subtree: subtrees) walkTree(subtree, seen, out, objects);
+        for (String blob: files) sendBlob(blob, seen, out, objects);
+        if (out != null) sendObject(out, objects, tree);
+    }
+
+    private static void sendBlob(String blob, ObjectIdMap seen, DataOutputStream out, ObjectStore objects) throws IOException {
+        if (!seen.add(blob)) return;
+        List<String> chunks = objects.chunksOf(blob);
+        if (chunks != null) {
+            for (String chunk: chunks) {
+                if (seen.add(chunk) && out != null) sendObject(out, objects, chunk);
+            }
+        }
+        if (out != null) sendObject(out, objects, blob);
+    }
+
+    private static void sendObject(DataOutputStream out, ObjectStore objects, String hash) throws IOException {
+        byte[][] entry = objects.readEntry(hash);
+        if (entry == null) throw new FileNotFoundException("Object " + hash + " does not exist");
+        out.writeByte(entry[0][0]);
+        out.writeUTF(hash);
+        out.writeInt(entry[1].length);
+        out.write(entry[1]);
+    }
+
+    /* Stores the objects of a pack, then adds its commits to the commit graph. Blobs, trees and
+    * commits are checked against their hash. Returns the number of objects received.*/
+    private static int receivePack(DataInputStream in) throws IOException {
+        if (in.readInt() != PACK_MAGIC) throw new IOException("Not a pack");
+        ObjectStore objects = ObjectStore.open();
+        ArrayList<String> commits = new ArrayList<>();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        int count = 0;
+        int type;
+        while ((type = in.readByte()) != 0) {
+            String hash = in.readUTF();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            if ((type == ObjectStore.BLOB || type == ObjectStore.TREE) && !ObjectId.toHex(md.digest(data)).equals(hash)) {
+                throw new IOException("Object " + hash + " is corrupt");
+            }
+            if (type == ObjectStore.COMMIT && !isCommit(hash, data)) {
+                throw new IOException("Commit " + hash + " is corrupt");
+            }
+            objects.write(hash, type, data);
+            if (type == ObjectStore.COMMIT) commits.add(hash);
+            count++;
+        }
+        CommitGraph graph = CommitGraph.open();
+        for (String hash: commits) graph.add(Commit.deserializeCommit(hash));
+        return count;
+    }
+
+    /* True if data is a commit stored under its own hash.*/
+    private static boolean isCommit(String hash, byte[] data) throws IOException {
+        Commit c = Commit.fromBytes(data);
+        return c.getCommitHash().equals(hash) && c.hasValidHash();
+    }
+
+    /* Hard links every object file of source into dest, for a clone on the same file system. Objects
+    * are never changed once written, so both repositories can share them. Returns false, with
+    * nothing linked, when the files can not be linked.*/
+    public static boolean linkObjects(File source, File dest) {
+        ArrayList<Path> linked = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(source.toPath())) {
+            for (Path f: (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(f) || f.getFileName().toString().endsWith(".tmp")) continue;
+                Path target = dest.toPath().resolve(source.toPath().relativize(f));
+                Files.createDirectories(target.getParent());
+                Files.createLink(target, f);
+                linked.add(target);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            for (Path f: linked) f.toFile().delete();
+            return false;
+        }
+    }
+
+    /* Name the remote-tracking refs of the repository at path are kept under: origin for the one
+    * cloned from, otherwise its directory name.*/
+    static String remoteName(String path) {
+        try {
+            String origin = Config.get("remote.origin", null);
+            if (origin != null && new File(origin).getCanonicalPath().equals(new File(path).getCanonicalPath())) return "origin";
+            return new File(path).getCanonicalFile().getName();
+        } catch (IOException e) {
+            return new File(path).getName();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* A directory snapshot: its files (name to blob hash) and subdirectories (name to tree hash).
+* A tree is stored under the hash of its serialized entries, so two snapshots of a directory with
+* the same contents share one tree object, and comparing two tree hashes tells whether anything
+* below them differs. Paths are relative to the repository root and separated by '/'.
+*
+* Stored tree: entry count, then for every entry in name order its type (BLOB or TREE), name and hash.*/
+public class Tree {
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private String hash;
+
+    private static class Entry {
+        final boolean isTree;
+        final String hash;
+        final Tree tree; //Subtree built in memory, null for stored ones
+
+        Entry(boolean isTree, String hash, Tree tree) {
+            this.isTree = isTree;
+            this.hash = hash;
+            this.tree = tree;
+        }
+    }
+
+    /* Receives the paths whose blob differs between two trees. A null hash stands for a path that
+    * does not exist on that side.*/
+    public interface Changes {
+        void changed(String path, String oldHash, String newHash) throws IOException;
+    }
+
+    private Tree() {}
+
+    /* Builds the trees for a map of path to blob hash in memory, without storing them. Fails when a
+    * path is given both as a file and as a directory of other paths, as only one of them could be kept.*/
+    public static Tree of(Map<String, String> files) throws IOException {
+        Tree root = new Tree();
+        for (Map.Entry<String, String> file: files.entrySet()) {
+            Tree dir = root;
+            String[] parts = file.getKey().split("/");
+            for (int i = 0; i < parts.length - 1; i++) {
+                Entry e = dir.entries.get(parts[i]);
+                if (e == null) {
+                    e = new Entry(true, null, new Tree());
+                    dir.entries.put(parts[i], e);
+                } else if (!e.isTree) {
+                    throw new IOException("Path is both a file and a directory: " + String.join("/", Arrays.copyOf(parts, i + 1)));
+                }
+                dir = e.tree;
+            }
+            Entry e = dir.entries.get(parts[parts.length - 1]);
+            if (e != null && e.isTree) throw new IOException("Path is both a file and a directory: " + file.getKey());
+            dir.entries.put(parts[parts.length - 1], new Entry(false, file.getValue(), null));
+        }
+        return root;
+    }
+
+    /* Loads a stored tree. Subtrees are loaded when they are first needed; trees are kept in the
+    * object cache.*/
+    public static Tree read(String hash) throws IOException {
+        ObjectCache cache = ObjectStore.open().getCache();
+        Object cached = cache.get(hash);
+        if (cached instanceof Tree) return (Tree) cached;
+        byte[] data = ObjectStore.open().readUncached(hash);
+        if (data == null) throw new FileNotFoundException("Tree " + hash + " does not exist");
+        Tree t = new Tree();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            boolean isTree = in.readByte() == ObjectStore.TREE;
+            String name = in.readUTF();
+            t.entries.put(name, new Entry(isTree, in.readUTF(), null));
+        }
+        t.hash = hash;
+        cache.put(hash, t, 64 + data.length * 3L);
+        return t;
+    }
+
+    private byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> e: entries.entrySet()) {
+            out.writeByte(e.getValue().isTree ? ObjectStore.TREE : ObjectStore.BLOB);
+            out.writeUTF(e.getKey());
+            out.writeUTF(entryHash(e.getValue()));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static String entryHash(Entry e) throws IOException {
+        return e.hash != null ? e.hash : e.tree.getHash();
+    }
+
+    public String getHash() throws IOException {
+        if (hash == null) {
+            try {
+                hash = ObjectId.toHex(MessageDigest.getInstance("SHA-1").digest(toBytes()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+        return hash;
+    }
+
+    /* Stores this tree and every subtree that is not stored yet. A stored subtree is not descended
+    * into, since everything below it is stored too. Returns the hash of this tree.*/
+    public String write(ObjectStore objects) throws IOException {
+        String h = getHash();
+        if (objects.contains(h)) return h;
+        for (Entry e: entries.values()) {
+            if (e.isTree && e.tree != null) e.tree.write(objects);
+        }
+        objects.write(h, ObjectStore.TREE, toBytes());
+        return h;
+    }
+
+    //Stored subtrees are not kept in the entry but found through the cache, so a cached tree does
+    //not hold on to everything below it
+    private Tree subtree(Entry e) throws IOException {
+        return e.tree != null ? e.tree : read(e.hash);
+    }
+
+    /* Blob hash of the file at path, or null. Only the directories on the path are read.*/
+    public String find(String path) throws IOException {
+        Tree dir = this;
+        String[] parts = path.split("/");
+        for (int i = 0; i < parts.length - 1; i++) {
+            Entry e = dir.entries.get(parts[i]);
+            if (e == null || !e.isTree) return null;
+            dir = dir.subtree(e);
+        }
+        Entry e = dir.entries.get(parts[parts.length - 1]);
+        return e == null || e.isTree ? null : e.hash;
+    }
+
+    /* Adds the hashes of the entries directly in this tree: subtrees to trees, files to blobs.*/
+    public void children(Collection<String> trees, Collection<String> blobs) throws IOException {
+        for (Entry e: entries.values()) {
+            if (e.isTree) trees.add(entryHash(e));
+            else blobs.add(e.hash);
+        }
+    }
+
+    /* Adds every file below this tree to files, keyed by its path.*/
+    public void flatten(String prefix, Map<String, String> files) throws IOException {
+        for (Map.Entry<String, Entry> e: entries.entrySet()) {
+            String path = prefix + e.getKey();
+            if (e.getValue().isTree) subtree(e.getValue()).flatten(path + "/", files);
+            else files.put(path, e.getValue().hash);
+        }
+    }
+
+    /* Reports the files that differ between two trees (either may be null for an empty tree), in
+    * path order. Subtrees with the same hash on both sides are skipped without being read.*/
+    public static void diff(Tree a, Tree b, String prefix, Changes changes) throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        if (a != null) names.addAll(a.entries.keySet());
+        if (b != null) {
+            for (String name: b.entries.keySet()) {
+                if (a == null || !a.entries.containsKey(name)) names.add(name);
+            }
+        }
+        names.sort(null);
+        for (String name: names) {
+            Entry ea = a == null ? null : a.entries.get(name);
+            Entry eb = b == null ? null : b.entries.get(name);
+            String path = prefix + name;
+            if (ea != null && eb != null && ea.isTree == eb.isTree && entryHash(ea).equals(entryHash(eb))) continue;
+            Tree ta = ea != null && ea.isTree ? a.subtree(ea) : null;
+            Tree tb = eb != null && eb.isTree ? b.subtree(eb) : null;
+            if (ta != null || tb != null) diff(ta, tb, path + "/", changes);
+            String fa = ea != null && !ea.isTree ? ea.hash : null;
+            String fb = eb != null && !eb.isTree ? eb.hash : null;
+            if (fa != null || fb != null) changes.changed(path, fa, fb);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/* Writes the hunks found by Diff in unified diff format, with three lines of context.*/
+public class UnifiedDiff {
+    private static final int CONTEXT = 3;
+    private static final byte[] NO_NEWLINE = "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /* Writes the diff of one file. A null name stands for a file that does not exist on that side.*/
+    public static void write(String oldName, String newName, byte[] oldData, byte[] newData, OutputStream out) throws IOException {
+        write(oldName, newName, oldData, newData, null, out);
+    }
+
+    /* Same, with extended header lines (those of a rename or copy) written after the first line,
+    * even when the content is the same.*/
+    public static void write(String oldName, String newName, byte[] oldData, byte[] newData, String header, OutputStream out) throws IOException {
+        Lines.Interner interner = new Lines.Interner();
+        Lines a = Lines.of(oldData, interner);
+        Lines b = Lines.of(newData, interner);
+        int[] hunks = Diff.diff(a.ids, b.ids);
+        if (hunks.length == 0 && header == null) return;
+        String name = oldName != null ? oldName : newName;
+        print(out, "diff --javavc a/" + name + " b/" + (newName != null ? newName : name) + "\n");
+        if (header != null) print(out, header);
+        if (hunks.length == 0) return;
+        print(out, "--- " + (oldName == null ? "/dev/null" : "a/" + oldName) + "\n");
+        print(out, "+++ " + (newName == null ? "/dev/null" : "b/" + newName) + "\n");
+        int first = 0;
+        while (first < hunks.length) {
+            //Hunks closer than two contexts apart are shown together
+            int last = first;
+            while (last + 4 < hunks.length && hunks[last + 4] - hunks[last + 1] <= 2 * CONTEXT) {
+                last += 4;
+            }
+            int aFrom = Math.max(0, hunks[first] - CONTEXT);
+            int aTo = Math.min(a.size(), hunks[last + 1] + CONTEXT);
+            int bFrom = hunks[first + 2] - (hunks[first] - aFrom);
+            int bTo = hunks[last + 3] + (aTo - hunks[last + 1]);
+            print(out, "@@ -" + range(aFrom, aTo) + " +" + range(bFrom, bTo) + " @@\n");
+            int pos = aFrom;
+            for (int h = first; h <= last; h += 4) {
+                lines(out, ' ', a, pos, hunks[h]);
+                lines(out, '-', a, hunks[h], hunks[h + 1]);
+                lines(out, '+', b, hunks[h + 2], hunks[h + 3]);
+                pos = hunks[h + 1];
+            }
+            lines(out, ' ', a, pos, aTo);
+            first = last + 4;
+        }
+    }
+
+    private static String range(int from, int to) {
+        int count = to - from;
+        if (count == 1) return Integer.toString(from + 1);
+        return (count == 0 ? from : from + 1) + "," + count;
+    }
+
+    private static void lines(OutputStream out, char prefix, Lines lines, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.write(prefix);
+            if (!lines.write(out, i, i + 1)) out.write(NO_NEWLINE);
+        }
+    }
+
+    private static void print(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* repack on a file whose history holds both a version stored whole and one stored as chunks: the
+* two must not be delta compressed against each other, as a delta takes the type of its base. The
+* small version is made of the large one's chunk manifest, so a delta between them would pay off.
+* Runs in the test repository (see TestRepository).*/
+public class RepackTest {
+    private static final String CHUNK_THRESHOLD = "4096";
+
+    @BeforeEach
+    public void clean() throws IOException {
+        TestRepository.clean();
+    }
+
+    @AfterEach
+    public void reset() {
+        System.clearProperty("javavc.chunk.threshold");
+        TestRepository.forget();
+    }
+
+    @Test
+    public void blobThenChunked() throws IOException {
+        repackBoth(false);
+    }
+
+    @Test
+    public void chunkedThenBlob() throws IOException {
+        repackBoth(true);
+    }
+
+    /* Commits a small and a large version of one file, the large one first if largeFirst, and checks
+    * that both read back with their type and content after a repack.*/
+    private void repackBoth(boolean largeFirst) throws IOException {
+        System.setProperty("javavc.chunk.threshold", CHUNK_THRESHOLD);
+        JavaVC.run(new String[]{"init"}, null);
+        byte[] large = lines(4000);
+        Files.write(new File("file.txt").toPath(), large);
+        byte[] manifest = ObjectStore.open().readEntry(ObjectStore.open().writeChunked(new File("file.txt")))[1];
+        byte[] small = Arrays.copyOf(manifest, manifest.length + 1);
+        small[manifest.length] = '\n';
+        String[] hashes = new String[2];
+        byte[][] contents = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            contents[i] = (i == 0) == largeFirst ? large : small;
+            Files.write(new File("file.txt").toPath(), contents[i]);
+            hashes[i] = JavaVC.generateBlobHash(new File("file.txt"));
+            JavaVC.run(new String[]{"add", "."}, null);
+            JavaVC.run(new String[]{"commit", "-m", "Version " + i}, null);
+        }
+        int[] types = new int[2];
+        ObjectStore objects = ObjectStore.open();
+        for (int i = 0; i < 2; i++) types[i] = objects.typeOf(hashes[i]);
+        assertEquals(largeFirst ? ObjectStore.CHUNKED : ObjectStore.BLOB, types[0]);
+        assertEquals(largeFirst ? ObjectStore.BLOB : ObjectStore.CHUNKED, types[1]);
+
+        JavaVC.run(new String[]{"repack"}, null);
+        ObjectStore.close();
+        objects = ObjectStore.open();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(objects.isPacked(hashes[i]));
+            assertEquals(types[i], objects.typeOf(hashes[i]));
+            assertArrayEquals(contents[i], objects.read(hashes[i]));
+        }
+    }
+
+    private static byte[] lines(int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) text.append("Line ").append(i).append(" of the file\n");
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
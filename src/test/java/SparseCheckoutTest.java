@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* A commit made under a sparse checkout keeps the paths left out of the working directory: they are
+* written back, unchanged, when the sparse checkout is turned off. Runs in the test repository (see
+* TestRepository).*/
+public class SparseCheckoutTest {
+    @BeforeEach
+    public void clean() throws IOException {
+        TestRepository.clean();
+    }
+
+    @AfterEach
+    public void reset() {
+        TestRepository.forget();
+    }
+
+    @Test
+    public void commitKeepsSkippedPaths() throws IOException {
+        JavaVC.run(new String[]{"init"}, null);
+        write("a/x.txt", "x\n");
+        write("b/y.txt", "y\n");
+        JavaVC.run(new String[]{"add", "."}, null);
+        JavaVC.run(new String[]{"commit", "-m", "Both"}, null);
+
+        JavaVC.run(new String[]{"sparse-checkout", "set", "a"}, null);
+        assertFalse(new File("b/y.txt").exists());
+        write("a/x.txt", "x changed\n");
+        JavaVC.run(new String[]{"add", "."}, null);
+        JavaVC.run(new String[]{"commit", "-m", "Only a"}, null);
+
+        JavaVC.run(new String[]{"sparse-checkout", "disable"}, null);
+        assertEquals("x changed\n", read("a/x.txt"));
+        assertEquals("y\n", read("b/y.txt"));
+    }
+
+    private static void write(String path, String content) throws IOException {
+        File f = new File(path);
+        f.getParentFile().mkdirs();
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(path).toPath()), StandardCharsets.UTF_8);
+    }
+}
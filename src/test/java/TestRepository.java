@@ -0,0 +1,39 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/* The repository tests run in. JavaVC works on the process's current directory, which a test can
+* not change, so tests build their repositories in the directory surefire is given (see pom.xml)
+* and empty it first. Nothing is deleted from any other directory: run from the project root, by
+* an IDE for example, a test would otherwise wipe the checkout.*/
+class TestRepository {
+    private static final String LOCATION = "target" + File.separator + "test-repository";
+
+    /* Empties the current directory, after checking that it is the test repository.*/
+    static void clean() throws IOException {
+        File cwd = new File(".").getCanonicalFile();
+        if (!cwd.getPath().endsWith(File.separator + LOCATION)) {
+            throw new IllegalStateException("Tests must run in " + LOCATION + ", not in " + cwd);
+        }
+        forget();
+        File[] files = cwd.listFiles();
+        if (files != null) {
+            for (File f: files) delete(f);
+        }
+    }
+
+    /* Drops what was loaded from the last repository, as the server does when .javavc changes.*/
+    static void forget() {
+        ObjectStore.close();
+        CommitGraph.close();
+        Config.reload();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.isDirectory() && !Files.isSymbolicLink(f.toPath()) ? f.listFiles() : null;
+        if (children != null) {
+            for (File c: children) delete(c);
+        }
+        f.delete();
+    }
+}